@@ -0,0 +1,181 @@
+package benchmarks;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+/**
+ *  Bridge to SeamCarver and Picture for the benchmarks.
+ *  <p>
+ *  The seam carver lives in the default package, which code in a named
+ *  package cannot import, and JMH will not generate benchmarks in the
+ *  default package. The calls therefore go through method handles held in
+ *  static final fields, which the JIT treats as constants and inlines like
+ *  direct calls, so they add nothing measurable to the timings.
+ */
+final class Carver {
+
+    private static final MethodHandle PICTURE_FILE;       // new Picture(String)
+    private static final MethodHandle PICTURE_SIZE;       // new Picture(int, int)
+    private static final MethodHandle SET_ROW;            // Picture.setRow(int, int[], int)
+    private static final MethodHandle PICTURE_WIDTH;      // Picture.width()
+    private static final MethodHandle PICTURE_HEIGHT;     // Picture.height()
+    private static final MethodHandle NEW_CARVER;         // new SeamCarver(Picture, ExecutorService)
+    private static final MethodHandle SET_THREAD_NO;      // SeamCarver.threadNo = int
+    private static final MethodHandle COMPUTE_ENERGY;     // SeamCarver.computeEnergy(), package-private
+    private static final MethodHandle ENERGY;             // SeamCarver.energy(int, int)
+    private static final MethodHandle FIND_VERTICAL;      // SeamCarver.findVerticalSeam()
+    private static final MethodHandle FIND_HORIZONTAL;    // SeamCarver.findHorizontalSeam()
+    private static final MethodHandle REMOVE_VERTICAL;    // SeamCarver.removeVerticalSeam(int[])
+    private static final MethodHandle REMOVE_HORIZONTAL;  // SeamCarver.removeHorizontalSeam(int[])
+    private static final MethodHandle RESIZE_TO;          // SeamCarver.resizeTo(int, int)
+
+    static {
+        try {
+            Class<?> picture = Class.forName("Picture");
+            Class<?> carver = Class.forName("SeamCarver");
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandles.Lookup inside = MethodHandles.privateLookupIn(carver, lookup);
+
+            PICTURE_FILE = lookup.findConstructor(picture, MethodType.methodType(void.class, String.class));
+            PICTURE_SIZE = lookup.findConstructor(picture, MethodType.methodType(void.class, int.class, int.class));
+            SET_ROW = lookup.findVirtual(picture, "setRow",
+                                         MethodType.methodType(void.class, int.class, int[].class, int.class));
+            PICTURE_WIDTH = lookup.findVirtual(picture, "width", MethodType.methodType(int.class));
+            PICTURE_HEIGHT = lookup.findVirtual(picture, "height", MethodType.methodType(int.class));
+            NEW_CARVER = lookup.findConstructor(carver,
+                                                MethodType.methodType(void.class, picture, ExecutorService.class));
+            SET_THREAD_NO = lookup.findSetter(carver, "threadNo", int.class);
+            COMPUTE_ENERGY = inside.findVirtual(carver, "computeEnergy", MethodType.methodType(void.class));
+            ENERGY = lookup.findVirtual(carver, "energy", MethodType.methodType(double.class, int.class, int.class));
+            FIND_VERTICAL = lookup.findVirtual(carver, "findVerticalSeam", MethodType.methodType(int[].class));
+            FIND_HORIZONTAL = lookup.findVirtual(carver, "findHorizontalSeam", MethodType.methodType(int[].class));
+            REMOVE_VERTICAL = lookup.findVirtual(carver, "removeVerticalSeam",
+                                                 MethodType.methodType(void.class, int[].class));
+            REMOVE_HORIZONTAL = lookup.findVirtual(carver, "removeHorizontalSeam",
+                                                   MethodType.methodType(void.class, int[].class));
+            RESIZE_TO = lookup.findVirtual(carver, "resizeTo",
+                                           MethodType.methodType(picture, int.class, int.class));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object carver;
+
+    /**
+     * Initializes a seam carver on the given picture, running its parallel
+     * work on {@code pool} split {@code threads} ways.
+     *
+     * @param picture a Picture, as returned by {@link #load}
+     * @param pool the executor of the seam carver
+     * @param threads the number of tasks each parallel step is split into
+     */
+    Carver(Object picture, ExecutorService pool, int threads) {
+        try {
+            carver = NEW_CARVER.invoke(picture, pool);
+            SET_THREAD_NO.invoke(carver, threads);
+        }
+        catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Returns the picture for a benchmark input: either an image file, such
+     * as {@code car.jpg}, resolved against the working directory, or a size
+     * {@code WxH} for a synthetic picture.
+     *
+     * @param input the file name or size
+     * @return the Picture
+     * @throws IllegalArgumentException if input is neither an image file nor a size
+     */
+    static Object load(String input) {
+        try {
+            if (input.matches("\\d+x\\d+")) {
+                String wh[] = input.split("x");
+                return synthetic(Integer.parseInt(wh[0]), Integer.parseInt(wh[1]));
+            }
+            if (!new File(input).isFile())
+                throw new IllegalArgumentException(input + " is not a file in " + new File("").getAbsolutePath()
+                                                   + "; run the benchmarks from the repository root");
+            return PICTURE_FILE.invoke(input);
+        }
+        catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // returns a deterministic smooth picture with noise, so energies are realistic
+    private static Object synthetic(int width, int height) throws Throwable {
+        Object picture = PICTURE_SIZE.invoke(width, height);
+        Random random = new Random(width * 31L + height);
+        int row[] = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(16)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(16)) & 0xFF;
+                int b = ((x ^ y) + random.nextInt(16)) & 0xFF;
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            SET_ROW.invoke(picture, y, row, 0);
+        }
+        return picture;
+    }
+
+    static int width(Object picture) {
+        try {
+            return (int) PICTURE_WIDTH.invoke(picture);
+        }
+        catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static int height(Object picture) {
+        try {
+            return (int) PICTURE_HEIGHT.invoke(picture);
+        }
+        catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    void computeEnergy() throws Throwable {
+        COMPUTE_ENERGY.invoke(carver);
+    }
+
+    double energy(int x, int y) throws Throwable {
+        return (double) ENERGY.invoke(carver, x, y);
+    }
+
+    int[] findVerticalSeam() throws Throwable {
+        return (int[]) FIND_VERTICAL.invoke(carver);
+    }
+
+    int[] findHorizontalSeam() throws Throwable {
+        return (int[]) FIND_HORIZONTAL.invoke(carver);
+    }
+
+    void removeVerticalSeam(int[] seam) throws Throwable {
+        REMOVE_VERTICAL.invoke(carver, seam);
+    }
+
+    void removeHorizontalSeam(int[] seam) throws Throwable {
+        REMOVE_HORIZONTAL.invoke(carver, seam);
+    }
+
+    Object resizeTo(int width, int height) throws Throwable {
+        return RESIZE_TO.invoke(carver, width, height);
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        return new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,126 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Compares two JMH result files written with {@code -rf csv} and exits with
+ *  status 1 if a benchmark got slower.
+ *  <pre>
+ *  % java -cp jmh/target/benchmarks.jar benchmarks.RegressionCheck baseline.csv current.csv [tolerance%]
+ *  </pre>
+ *  A benchmark counts as slower only when its score rose by more than the
+ *  tolerance (default 5%) and the two 99.9% confidence intervals JMH reports
+ *  do not overlap, so that run-to-run noise, which widens the intervals,
+ *  does not fail the check. Benchmarks present in only one file are skipped.
+ *  Both runs should use the same options on the same machine.
+ */
+public final class RegressionCheck {
+
+    private RegressionCheck() { }
+
+    // one row of a JMH CSV result file
+    private static final class Result {
+        final double score, error;
+        final String unit;
+
+        Result(double score, double error, String unit) {
+            this.score = score;
+            this.error = Double.isNaN(error) ? 0 : error;      // NaN with a single sample
+            this.unit = unit;
+        }
+    }
+
+    // splits a CSV line, removing the quotes around quoted fields
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append(c);        // "" inside quotes
+                    i++;
+                }
+                else quoted = !quoted;
+            }
+            else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    // maps "benchmark mode param=value ..." to its result
+    private static Map<String, Result> read(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        if (lines.isEmpty()) throw new IllegalArgumentException(file + " is empty");
+        List<String> header = fields(lines.get(0));
+        int benchmark = header.indexOf("Benchmark"), mode = header.indexOf("Mode");
+        int score = header.indexOf("Score"), unit = header.indexOf("Unit");
+        int error = -1;
+        for (int i = 0; i < header.size(); i++)
+            if (header.get(i).startsWith("Score Error")) error = i;
+        if (benchmark < 0 || mode < 0 || score < 0 || error < 0 || unit < 0)
+            throw new IllegalArgumentException(file + " is not a JMH CSV result file");
+
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty()) continue;
+            List<String> row = fields(line);
+            StringBuilder key = new StringBuilder(row.get(benchmark)).append(' ').append(row.get(mode));
+            for (int i = 0; i < header.size(); i++)
+                if (header.get(i).startsWith("Param: "))
+                    key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+            results.put(key.toString(), new Result(Double.parseDouble(row.get(score)),
+                                                   Double.parseDouble(row.get(error)), row.get(unit)));
+        }
+        return results;
+    }
+
+    /**
+     * Runs the comparison described in the class comment.
+     *
+     * @param args the baseline file, the current file and an optional tolerance in percent
+     * @throws IOException if a result file cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("usage: RegressionCheck baseline.csv current.csv [tolerance%]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(args[0]), current = read(args[1]);
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+
+        int compared = 0, regressions = 0;
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result before = baseline.get(entry.getKey()), after = entry.getValue();
+            if (before == null || !before.unit.equals(after.unit)) continue;
+            compared++;
+            double change = 100 * (after.score - before.score) / before.score;
+            // average time grows when slower, throughput shrinks
+            boolean higherIsWorse = after.unit.endsWith("/op");
+            if (!higherIsWorse) change = -change;
+            boolean separate = higherIsWorse ? after.score - after.error > before.score + before.error
+                                             : after.score + after.error < before.score - before.error;
+            if (change > tolerance && separate) {
+                regressions++;
+                System.out.printf("REGRESSION %s: %.3f +- %.3f %s, was %.3f +- %.3f (%+.1f%%)%n",
+                                  entry.getKey(), after.score, after.error, after.unit,
+                                  before.score, before.error, change);
+            }
+        }
+        System.out.printf("%d of %d benchmarks within %.0f%% of %s%n",
+                          compared - regressions, compared, tolerance, args[0]);
+        if (regressions > 0) System.exit(1);
+    }
+}
@@ -0,0 +1,119 @@
+package benchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ *  JMH benchmarks for the seam carver hot paths: the bulk energy fill,
+ *  seam search, seam removal and a multi-seam carve, on the bundled
+ *  images and on synthetic pictures up to 8K, across worker counts.
+ *  <p>
+ *  Build with {@code mvn -B package} and run from the repository root, so
+ *  that the bundled images are found:
+ *  <pre>
+ *  % java -jar jmh/target/benchmarks.jar
+ *  % java -jar jmh/target/benchmarks.jar findVerticalSeam -p input=car.jpg,7680x4320 -p threads=1,8,32
+ *  % java -jar jmh/target/benchmarks.jar -rf csv -rff baseline.csv
+ *  </pre>
+ *  Each thread count gets a fixed pool of that many workers and the same
+ *  threadNo, so the parallel steps are split exactly that many ways. Every
+ *  operation starts from a fresh SeamCarver built outside the timed
+ *  region, since each one changes or caches the carver's state.
+ *  {@link RegressionCheck} compares two CSV result files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+public class SeamCarverBenchmark {
+
+    /** Seams removed in each direction by {@link #resizeTo}. */
+    static final int SEAMS = 10;
+
+    /** An image file in the working directory, or WxH for a synthetic picture. */
+    @Param({ "car.jpg", "tesla.jpg", "biking.jpg", "1280x720", "1920x1080", "3840x2160", "7680x4320" })
+    public String input;
+
+    /** The number of workers, and the threadNo of the seam carver. */
+    @Param({ "1", "4" })
+    public int threads;
+
+    private Object picture;
+    private ExecutorService pool;
+    private Carver carver;
+    private int[] verticalSeam, horizontalSeam;
+
+    @Setup(Level.Trial)
+    public void loadInput() {
+        picture = Carver.load(input);
+        pool = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopPool() {
+        pool.shutdown();
+    }
+
+    // a fresh carver per operation; the removal benchmarks also get their
+    // seam found here, untimed
+    @Setup(Level.Invocation)
+    public void newCarver(BenchmarkParams params) throws Throwable {
+        carver = new Carver(picture, pool, threads);
+        String name = params.getBenchmark();
+        verticalSeam = name.endsWith(".removeVerticalSeam") ? carver.findVerticalSeam() : null;
+        horizontalSeam = name.endsWith(".removeHorizontalSeam") ? carver.findHorizontalSeam() : null;
+    }
+
+    /** The bulk energy fill every seam search starts with. */
+    @Benchmark
+    public double energy() throws Throwable {
+        carver.computeEnergy();
+        return carver.energy(0, 0);
+    }
+
+    @Benchmark
+    public int[] findVerticalSeam() throws Throwable {
+        return carver.findVerticalSeam();
+    }
+
+    @Benchmark
+    public int[] findHorizontalSeam() throws Throwable {
+        return carver.findHorizontalSeam();
+    }
+
+    @Benchmark
+    public Carver removeVerticalSeam() throws Throwable {
+        carver.removeVerticalSeam(verticalSeam);
+        return carver;
+    }
+
+    @Benchmark
+    public Carver removeHorizontalSeam() throws Throwable {
+        carver.removeHorizontalSeam(horizontalSeam);
+        return carver;
+    }
+
+    /** A full carve of {@link #SEAMS} seams in each direction. */
+    @Benchmark
+    public Object resizeTo() throws Throwable {
+        return carver.resizeTo(Carver.width(picture) - SEAMS, Carver.height(picture) - SEAMS);
+    }
+}
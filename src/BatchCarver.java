@@ -0,0 +1,312 @@
+/******************************************************************************
+ *  Compilation:  javac BatchCarver.java
+ *  Execution:    java BatchCarver [options] input ...
+ *  Dependencies: SeamCarver.java Picture.java RawRaster.java CarverMetrics.java
+ *
+ *  Headless batch seam carving of many images. Decoding, carving and
+ *  encoding run as separate pipeline stages, each with its own threads,
+ *  connected by bounded queues so a slow stage throttles the others
+ *  instead of filling the heap.
+ *
+ *  % java BatchCarver -width 75% -height 75% -out thumbs photos/
+ *  % java BatchCarver -width 640 -carvers 16 -format raw @nightly.txt
+ *
+ *  Options
+ *  -------
+ *   -width spec      target width, in pixels or as a percentage (default 100%)
+ *   -height spec     target height, in pixels or as a percentage (default 100%)
+ *   -out dir         output directory (default carved)
+ *   -format ext      output format png, jpg or raw (default: same as input)
+ *   -decoders n      decoding threads (default 2)
+ *   -carvers n       carving threads (default number of processors)
+ *   -encoders n      encoding threads (default 2)
+ *   -queue n         pictures buffered between two stages (default 2 per carver)
+ *   -perpass k       seams removed per DP sweep, trading quality for speed (default 1)
+ *
+ *  Inputs are image files, directories (every .jpg, .png, .gif and .raw in
+ *  them, recursively) or @file naming a file that lists one input per line.
+ *  Images found in a directory keep their path below it in the output
+ *  directory. The run is refused if two inputs would be written to the same
+ *  file, such as x.gif and x.png, which are both written as x.png.
+ *  Throughput is reported every 100 images and at the end, followed by the
+ *  time spent per carving stage. The carvers' shared metrics are also
+ *  published over JMX as seamcarver:type=CarverMetrics,name=BatchCarver.
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+
+public final class BatchCarver {
+
+    // a picture travelling through the pipeline
+    private static final class Job {
+        final File input;
+        final String name;                     // input path below its root argument
+        Picture picture;
+        Job(File input, String name) { this.input = input; this.name = name; }
+    }
+
+    private static final Job END = new Job(null, null);   // poison pill, one per consumer
+
+    private String width = "100%", height = "100%";
+    private File out = new File("carved");
+    private String format;
+    private int decoders = 2, carvers = Runtime.getRuntime().availableProcessors(), encoders = 2;
+    private int queue = -1;
+    private int perPass = 1;
+
+    private final AtomicInteger done = new AtomicInteger(), failed = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+    private final CarverMetrics metrics = new CarverMetrics();
+    private long start;
+
+    // resolve a width/height spec such as "640" or "75%" against size
+    static int target(String spec, int size) {
+        int value;
+        if (spec.endsWith("%"))
+            value = (int) Math.round(size * Double.parseDouble(spec.substring(0, spec.length() - 1)) / 100);
+        else
+            value = Integer.parseInt(spec);
+        return Math.max(1, Math.min(size, value));
+    }
+
+    private static boolean isImage(String name) {
+        String n = name.toLowerCase();
+        return n.endsWith(".jpg") || n.endsWith(".png") || n.endsWith(".gif") || RawRaster.isRaw(n);
+    }
+
+    // add the inputs an argument names: an image, a directory or @list
+    private static void collect(String arg, List<Job> inputs) throws IOException {
+        if (arg.startsWith("@")) {
+            for (String line : Files.readAllLines(new File(arg.substring(1)).toPath()))
+                if (!line.trim().isEmpty()) collect(line.trim(), inputs);
+        }
+        else {
+            File file = new File(arg);
+            collect(file, file.isDirectory() ? "" : file.getName(), inputs);
+        }
+    }
+
+    // name is the path of file below the root argument it was found in
+    private static void collect(File file, String name, List<Job> inputs) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null) return;
+            java.util.Arrays.sort(children);
+            for (File child : children)
+                if (child.isDirectory() || isImage(child.getName()))
+                    collect(child, name.isEmpty() ? child.getName() : name + "/" + child.getName(), inputs);
+        }
+        else inputs.add(new Job(file, name));
+    }
+
+    private File output(Job job) {
+        String name = job.name;
+        int dot = name.lastIndexOf('.');
+        if (dot < name.lastIndexOf('/')) dot = -1;
+        String base = dot < 0 ? name : name.substring(0, dot);
+        String ext  = format != null ? format : (dot < 0 ? "png" : name.substring(dot + 1).toLowerCase());
+        if (ext.equals("gif")) ext = "png";
+        return new File(out, base + "." + ext);
+    }
+
+    private void failed(Job job, Throwable e) {
+        failed.incrementAndGet();
+        System.err.println("Could not carve " + job.input + ": " + e);
+    }
+
+    private void report() {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d images (%d failed) in %.1f s: %.2f images/s, %.2f MP/s%n",
+                          done.get(), failed.get(), seconds,
+                          done.get() / seconds, pixels.get() / 1e6 / seconds);
+    }
+
+    // start n threads of one stage; each puts one END downstream when the
+    // last thread of the stage finishes, however it finishes. A job that
+    // throws anything, an OutOfMemoryError included, only counts as failed
+    private List<Thread> stage(String name, int n, final BlockingQueue<Job> in, final BlockingQueue<Job> next,
+                               final int downstream, final StageBody body) {
+        final AtomicInteger running = new AtomicInteger(n);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < n; i++) {
+            Thread t = new Thread(name + "-" + i) {
+                public void run() {
+                    try {
+                        for (Job job = in.take(); job != END; job = in.take()) {
+                            boolean forward = false;
+                            try {
+                                forward = body.process(job);
+                            }
+                            catch (InterruptedException e) {
+                                throw e;
+                            }
+                            catch (Throwable e) {               // an OutOfMemoryError costs one image, not the stage
+                                job.picture = null;
+                                failed(job, e);
+                            }
+                            if (forward && next != null) next.put(job);
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        if (running.decrementAndGet() == 0 && next != null)
+                            for (int k = 0; k < downstream; k++) putEnd(next);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        return threads;
+    }
+
+    // hand END downstream even if this thread was interrupted, so the next
+    // stage always learns that this one is finished
+    private static void putEnd(BlockingQueue<Job> next) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                next.put(END);
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // the work of one stage on one picture; false drops the picture
+    private interface StageBody {
+        boolean process(Job job) throws Exception;
+    }
+
+    // the first message about two different inputs sharing an output
+    // file, or null if every output is distinct; repeated inputs are dropped
+    private String dropDuplicates(List<Job> inputs) throws IOException {
+        Map<File, Job> outputs = new HashMap<File, Job>();
+        for (Iterator<Job> i = inputs.iterator(); i.hasNext(); ) {
+            Job job = i.next();
+            Job other = outputs.put(output(job).getCanonicalFile(), job);
+            if (other == null) continue;
+            if (!other.input.getCanonicalFile().equals(job.input.getCanonicalFile()))
+                return other.input + " and " + job.input + " would both be written to " + output(job);
+            outputs.put(output(job).getCanonicalFile(), other);
+            i.remove();
+        }
+        return null;
+    }
+
+    private void run(List<Job> inputs) throws InterruptedException {
+        if (queue < 1) queue = 2 * carvers;
+        final BlockingQueue<Job> files   = new ArrayBlockingQueue<Job>(inputs.size() + decoders);
+        final BlockingQueue<Job> decoded = new ArrayBlockingQueue<Job>(queue);
+        final BlockingQueue<Job> carved  = new ArrayBlockingQueue<Job>(queue);
+        for (Job job : inputs) files.put(job);
+        for (int i = 0; i < decoders; i++) files.put(END);
+
+        out.mkdirs();
+        try {
+            metrics.register("BatchCarver");
+        }
+        catch (JMException e) {
+            System.err.println("Metrics not published over JMX: " + e);
+        }
+        start = System.nanoTime();
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.addAll(stage("decode", decoders, files, decoded, carvers, new StageBody() {
+            public boolean process(Job job) {
+                job.picture = new Picture(job.input);
+                return true;
+            }
+        }));
+        threads.addAll(stage("carve", carvers, decoded, carved, encoders, new StageBody() {
+            public boolean process(Job job) throws InterruptedException {
+                Picture picture = job.picture;
+                pixels.addAndGet((long) picture.width() * picture.height());
+                SeamCarver seamcarver = new SeamCarver(picture);
+                seamcarver.threadNo = 0;                   // images are the unit of parallelism
+                seamcarver.seamsPerPass = perPass;
+                seamcarver.setMetrics(metrics);
+                job.picture = seamcarver.resizeTo(target(width, picture.width()), target(height, picture.height()));
+                return true;
+            }
+        }));
+        threads.addAll(stage("encode", encoders, carved, null, 0, new StageBody() {
+            public boolean process(Job job) throws IOException {
+                File file = output(job);
+                file.getParentFile().mkdirs();
+                if (file.isFile()) Files.delete(file.toPath());
+                job.picture.save(file);               // reports failures on the console only
+                if (!file.isFile() || file.length() == 0) throw new IOException("nothing written to " + file);
+                job.picture = null;
+                if (done.incrementAndGet() % 100 == 0) report();
+                return true;
+            }
+        }));
+        for (Thread t : threads) t.join();
+        report();
+        for (CarverMetrics.Stage stage : CarverMetrics.Stage.values())
+            if (metrics.getCount(stage) > 0)
+                System.out.printf("  %-12s %10.1f ms %10d%n", stage, metrics.getNanos(stage) / 1e6, metrics.getCount(stage));
+        System.out.printf("  energy cache hit rate %.1f%%, %.1f MB allocated%n",
+                          100 * metrics.getCacheHitRate(), metrics.getBytesAllocated() / 1e6);
+    }
+
+   /**
+     * Carves the inputs described in the header comment.
+     *
+     * @param args the command-line arguments
+     * @throws Exception if the inputs cannot be listed or the run is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        BatchCarver batch = new BatchCarver();
+        List<Job> inputs = new ArrayList<Job>();
+        for (int i = 0; i < args.length; i++) {
+            if      (args[i].equals("-width"))    batch.width    = args[++i];
+            else if (args[i].equals("-height"))   batch.height   = args[++i];
+            else if (args[i].equals("-out"))      batch.out      = new File(args[++i]);
+            else if (args[i].equals("-format"))   batch.format   = args[++i].toLowerCase();
+            else if (args[i].equals("-decoders")) batch.decoders = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-carvers"))  batch.carvers  = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-encoders")) batch.encoders = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-queue"))    batch.queue    = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-perpass"))  batch.perPass  = Integer.parseInt(args[++i]);
+            else collect(args[i], inputs);
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("usage: java BatchCarver [-width spec] [-height spec] [-out dir] [-format ext] "
+                               + "[-decoders n] [-carvers n] [-encoders n] [-queue n] [-perpass k] input ...");
+            System.exit(2);
+        }
+        if (batch.decoders < 1 || batch.carvers < 1 || batch.encoders < 1)
+            throw new IllegalArgumentException("every stage needs at least one thread");
+        if (batch.perPass < 1) throw new IllegalArgumentException("-perpass must be at least 1");
+        if (batch.format != null && !batch.format.equals("png") && !batch.format.equals("jpg") && !batch.format.equals("raw"))
+            throw new IllegalArgumentException("-format must be png, jpg or raw");
+        String clash = batch.dropDuplicates(inputs);
+        if (clash != null) {
+            System.err.println("Refusing to run: " + clash);
+            System.exit(2);
+        }
+        batch.run(inputs);
+        if (batch.failed.get() > 0) System.exit(1);
+    }
+}
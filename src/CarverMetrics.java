@@ -0,0 +1,186 @@
+/******************************************************************************
+ *  Compilation:  javac CarverMetrics.java
+ *  Dependencies: CarverMetricsMBean.java
+ *
+ *  Per-stage timers and counters of one or more seam carvers.
+ *
+ ******************************************************************************/
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ *  <tt>CarverMetrics</tt> accumulates where a {@link SeamCarver} spends its
+ *  time. For every {@link Stage} it keeps the nanoseconds spent and the
+ *  number of items processed. It also counts energy lookups against energy
+ *  computations, which gives the cache hit rate, and the bytes of buffers
+ *  the carver allocates.
+ *  <p>
+ *  Every carver starts with a metrics object of its own. Several carvers
+ *  may share one, for instance all the workers of a batch, since updates
+ *  are thread-safe and cheap: they happen once per stage, never per pixel.
+ *  Listeners see every completed stage as it happens, and
+ *  {@link #register} publishes the totals as a JMX MBean.
+ */
+public final class CarverMetrics implements CarverMetricsMBean {
+
+   /**
+     * A timed part of the carving pipeline, with what its count measures.
+     */
+    public enum Stage {
+        /** Filling the energy cache; counts sweeps. */
+        ENERGY,
+        /** The cumulative-energy DP; counts sweeps. */
+        SEARCH,
+        /** Tracing seams back from the last row; counts seams. */
+        BACKTRACK,
+        /** Compacting the buffer and invalidating energies; counts seams. */
+        REMOVAL,
+        /** Switching between vertical and horizontal layout; counts transposes. */
+        TRANSPOSE,
+        /** Widening the buffer for inserted seams; counts seams. */
+        INSERTION,
+        /** Building a <tt>Picture</tt> from the buffer; counts pictures. */
+        MATERIALIZE,
+        /** A whole <tt>resizeTo</tt> call; counts calls. */
+        RESIZE
+    }
+
+   /**
+     * Receives every stage a carver completes, on the thread that ran it.
+     * Listeners should return quickly.
+     */
+    public interface Listener {
+        void stageCompleted(Stage stage, long nanos, long count);
+    }
+
+    private final LongAdder[] nanos  = new LongAdder[Stage.values().length];
+    private final LongAdder[] counts = new LongAdder[Stage.values().length];
+    private final LongAdder requested = new LongAdder(), computed = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+   /**
+     * Creates metrics with every counter at zero.
+     */
+    public CarverMetrics() {
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i]  = new LongAdder();
+            counts[i] = new LongAdder();
+        }
+    }
+
+   /**
+     * Adds a listener.
+     *
+     * @param listener the listener
+     * @throws NullPointerException if <tt>listener</tt> is <tt>null</tt>
+     */
+    public void addListener(Listener listener) {
+        if (listener == null) throw new NullPointerException("listener must not be null");
+        listeners.add(listener);
+    }
+
+   /**
+     * Removes a listener, if present.
+     *
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // a stage took nanos and processed count items
+    void record(Stage stage, long nanos, long count) {
+        this.nanos[stage.ordinal()].add(nanos);
+        counts[stage.ordinal()].add(count);
+        for (Listener listener : listeners)
+            listener.stageCompleted(stage, nanos, count);
+    }
+
+    // requested energies were looked up, of which computed were not cached
+    void energy(long requested, long computed) {
+        this.requested.add(requested);
+        this.computed.add(computed);
+    }
+
+    void allocated(long bytes) {
+        allocated.add(bytes);
+    }
+
+   /**
+     * Returns the nanoseconds spent in <tt>stage</tt>.
+     *
+     * @param stage the stage
+     * @return the total time
+     */
+    public long getNanos(Stage stage) {
+        return nanos[stage.ordinal()].sum();
+    }
+
+   /**
+     * Returns the number of items <tt>stage</tt> processed; see {@link Stage}.
+     *
+     * @param stage the stage
+     * @return the total count
+     */
+    public long getCount(Stage stage) {
+        return counts[stage.ordinal()].sum();
+    }
+
+    public long getEnergyNanos()      { return getNanos(Stage.ENERGY); }
+    public long getSearchNanos()      { return getNanos(Stage.SEARCH); }
+    public long getBacktrackNanos()   { return getNanos(Stage.BACKTRACK); }
+    public long getRemovalNanos()     { return getNanos(Stage.REMOVAL); }
+    public long getTransposeNanos()   { return getNanos(Stage.TRANSPOSE); }
+    public long getInsertionNanos()   { return getNanos(Stage.INSERTION); }
+    public long getMaterializeNanos() { return getNanos(Stage.MATERIALIZE); }
+    public long getResizeNanos()      { return getNanos(Stage.RESIZE); }
+    public long getSeamsFound()       { return getCount(Stage.BACKTRACK); }
+    public long getSeamsRemoved()     { return getCount(Stage.REMOVAL); }
+    public long getEnergyRequested()  { return requested.sum(); }
+    public long getEnergyComputed()   { return computed.sum(); }
+    public long getBytesAllocated()   { return allocated.sum(); }
+
+   /**
+     * Returns the fraction of energy lookups served from the cache.
+     *
+     * @return the hit rate between 0 and 1, or 0 before any lookup
+     */
+    public double getCacheHitRate() {
+        long r = requested.sum();
+        return r == 0 ? 0 : 1 - computed.sum() / (double) r;
+    }
+
+   /**
+     * Sets every counter back to zero. Counts racing with a reset may be
+     * lost or kept.
+     */
+    public void reset() {
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i].reset();
+            counts[i].reset();
+        }
+        requested.reset();
+        computed.reset();
+        allocated.reset();
+    }
+
+   /**
+     * Registers these metrics with the platform MBean server as
+     * <tt>seamcarver:type=CarverMetrics,name=</tt><em>name</em>.
+     *
+     * @param name the name distinguishing these metrics
+     * @return the name they were registered under
+     * @throws JMException if the name is invalid or already taken
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("seamcarver:type=CarverMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+}
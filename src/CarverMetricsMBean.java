@@ -0,0 +1,23 @@
+/**
+ *  The JMX view of a {@link CarverMetrics}: time spent per stage in
+ *  nanoseconds, work counters and the energy cache hit rate.
+ */
+public interface CarverMetricsMBean {
+    long getEnergyNanos();
+    long getSearchNanos();
+    long getBacktrackNanos();
+    long getRemovalNanos();
+    long getTransposeNanos();
+    long getInsertionNanos();
+    long getMaterializeNanos();
+    long getResizeNanos();
+
+    long getSeamsFound();
+    long getSeamsRemoved();
+    long getEnergyRequested();
+    long getEnergyComputed();
+    double getCacheHitRate();
+    long getBytesAllocated();
+
+    void reset();
+}
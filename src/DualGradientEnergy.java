@@ -0,0 +1,48 @@
+/**
+ *  The dual-gradient energy: the squared RGB difference between the left
+ *  and right neighbours plus the one between the pixels above and below.
+ *  This is the default <tt>SeamCarver</tt> energy.
+ */
+public final class DualGradientEnergy implements EnergyFunction {
+
+    // squared RGB distance of two packed pixels
+    static int gradient(int p1, int p2) {
+        int r = ((p1 >> 16) & 0xFF) - ((p2 >> 16) & 0xFF);
+        int g = ((p1 >>  8) & 0xFF) - ((p2 >>  8) & 0xFF);
+        int b = ( p1        & 0xFF) - ( p2        & 0xFF);
+        return r*r + g*g + b*b;
+    }
+
+    @Override
+    public void energyRow(int[] rgb, int stride, int width, int height, int y,
+                          int from, int to, double[] energy, int offset) {
+        int row  = y * stride;
+        int up   = (y == 0 ? height - 1 : y - 1) * stride;
+        int down = (y == height - 1 ? 0 : y + 1) * stride;
+
+        // the border columns wrap; the interior loop has no branches
+        int x = from;
+        if (x == 0 && x < to) {
+            energy[offset] = gradient(rgb[row + width - 1], rgb[row + (width > 1 ? 1 : 0)])
+                           + gradient(rgb[up], rgb[down]);
+            x++;
+        }
+        int end = Math.min(to, width - 1);
+        for (; x < end; x++)
+            energy[offset + x] = gradient(rgb[row + x - 1], rgb[row + x + 1])
+                               + gradient(rgb[up + x], rgb[down + x]);
+        if (x < to)
+            energy[offset + x] = gradient(rgb[row + x - 1], rgb[row])
+                               + gradient(rgb[up + x], rgb[down + x]);
+    }
+
+    @Override
+    public double maxEnergy() {
+        return 6 * 255 * 255;              // two squared RGB distances
+    }
+
+    @Override
+    public int radius() {
+        return 1;
+    }
+}
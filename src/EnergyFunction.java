@@ -0,0 +1,56 @@
+/**
+ *  Strategy computing the per-pixel energy that seams try to avoid.
+ *  <p>
+ *  Implementations work a row at a time on a packed RGB raster (red in bits
+ *  16-23, green in 8-15, blue in 0-7; the top byte is ignored) and write
+ *  into a primitive array, so their inner loops stay free of allocation
+ *  and method calls. Pixels outside the picture wrap around to the
+ *  opposite border.
+ */
+public interface EnergyFunction {
+
+   /**
+     * Computes the energy of pixels <tt>from</tt> (inclusive) to <tt>to</tt>
+     * (exclusive) of row <tt>y</tt>.
+     *
+     * @param rgb the raster; pixel (<em>x</em>, <em>y</em>) is at <tt>rgb[y*stride+x]</tt>
+     * @param stride the distance between the starts of two rows in <tt>rgb</tt>
+     * @param width the number of columns in the picture
+     * @param height the number of rows in the picture
+     * @param y the row
+     * @param from the first column
+     * @param to one past the last column
+     * @param energy receives the energy of pixel (<em>x</em>, <tt>y</tt>) at <tt>energy[offset+x]</tt>
+     * @param offset the index in <tt>energy</tt> of column 0
+     */
+    void energyRow(int[] rgb, int stride, int width, int height, int y,
+                   int from, int to, double[] energy, int offset);
+
+   /**
+     * Returns how far the neighbourhood read for one pixel reaches in each
+     * direction. Removing a seam only changes the energy of pixels within
+     * this distance of it.
+     *
+     * @return the neighbourhood radius, at least 1
+     */
+    int radius();
+
+   /**
+     * Returns an upper bound of the energy of any pixel, used to scale
+     * quantized energy maps.
+     *
+     * @return the largest energy this function produces
+     */
+    double maxEnergy();
+
+   /**
+     * Returns true if the energy of the transposed picture is the transpose
+     * of the energy, so that energies can be reused when switching between
+     * vertical and horizontal seams.
+     *
+     * @return <tt>true</tt> unless the energy depends on the seam direction
+     */
+    default boolean isotropic() {
+        return true;
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+/**
+ *  A flat per-pixel energy store with a configurable precision.
+ *  <p>
+ *  <tt>DOUBLE</tt> keeps energies exactly at 8 bytes per pixel.
+ *  <tt>FLOAT</tt> halves that at about 7 significant digits.
+ *  <tt>INT</tt> rounds up to whole numbers, which is exact for the
+ *  integer-valued gradient energies, at 4 bytes per pixel.
+ *  <tt>SHORT</tt> quantizes the range [0, maximum energy] to 65534 steps at
+ *  2 bytes per pixel, reserving the top step for the invalid marker.
+ *  <p>
+ *  Every entry is either a cached energy or invalid, so a genuine zero
+ *  energy, as in flat backgrounds, is cached like any other. Storing a
+ *  negative value invalidates an entry and <tt>get</tt> returns
+ *  {@link #INVALID} for it.
+ */
+public abstract class EnergyMap {
+
+   /**
+     * The storage precision of an energy map.
+     */
+    public enum Precision { DOUBLE, FLOAT, INT, SHORT }
+
+    // value of an entry that holds no energy; energies are never negative
+    static final double INVALID = -1;
+
+   /**
+     * Creates a map with every entry invalid.
+     *
+     * @param precision the storage precision
+     * @param size the number of pixels
+     * @param maxEnergy the largest energy stored, used by <tt>SHORT</tt> only
+     * @return the new map
+     */
+    static EnergyMap create(Precision precision, int size, double maxEnergy) {
+        EnergyMap map;
+        switch (precision) {
+            case FLOAT: map = new FloatMap(size); break;
+            case INT:   map = new IntMap(size); break;
+            case SHORT: map = new ShortMap(size, maxEnergy); break;
+            default:    map = new DoubleMap(size); break;
+        }
+        map.clear();
+        return map;
+    }
+
+    abstract Precision precision();
+
+    // the energy of entry i, or INVALID
+    abstract double get(int i);
+
+    // a negative energy invalidates the entry
+    abstract void set(int i, double energy);
+
+    // writes energy[from..to) to entries offset+from..offset+to
+    abstract void set(int offset, double[] energy, int from, int to);
+
+    // System.arraycopy within the map
+    abstract void move(int src, int dst, int length);
+
+    // invalidates every entry
+    abstract void clear();
+
+    // an invalid map of the same kind and size
+    abstract EnergyMap copyShape();
+
+    // a map of the same kind, size and contents
+    abstract EnergyMap copy();
+
+    // memory held by the entries
+    abstract long bytes();
+
+    private static final class DoubleMap extends EnergyMap {
+        private final double[] e;
+        DoubleMap(int size)                 { e = new double[size]; }
+        Precision precision()               { return Precision.DOUBLE; }
+        double get(int i)                   { return e[i]; }
+        void set(int i, double energy)      { e[i] = energy; }
+        void set(int offset, double[] energy, int from, int to) {
+            System.arraycopy(energy, from, e, offset + from, to - from);
+        }
+        void move(int src, int dst, int length) { System.arraycopy(e, src, e, dst, length); }
+        void clear()                        { Arrays.fill(e, -1); }
+        EnergyMap copyShape()               { return create(Precision.DOUBLE, e.length, 0); }
+        long bytes()                        { return 8 * (long) e.length; }
+        EnergyMap copy()                    { DoubleMap m = new DoubleMap(e.length); System.arraycopy(e, 0, m.e, 0, e.length); return m; }
+    }
+
+    private static final class FloatMap extends EnergyMap {
+        private final float[] e;
+        FloatMap(int size)                  { e = new float[size]; }
+        Precision precision()               { return Precision.FLOAT; }
+        double get(int i)                   { return e[i]; }
+        void set(int i, double energy)      { e[i] = energy < 0 ? -1 : (float) energy; }
+        void set(int offset, double[] energy, int from, int to) {
+            for (int x = from; x < to; x++) set(offset + x, energy[x]);
+        }
+        void move(int src, int dst, int length) { System.arraycopy(e, src, e, dst, length); }
+        void clear()                        { Arrays.fill(e, -1); }
+        EnergyMap copyShape()               { return create(Precision.FLOAT, e.length, 0); }
+        long bytes()                        { return 4 * (long) e.length; }
+        EnergyMap copy()                    { FloatMap m = new FloatMap(e.length); System.arraycopy(e, 0, m.e, 0, e.length); return m; }
+    }
+
+    private static final class IntMap extends EnergyMap {
+        private final int[] e;
+        IntMap(int size)                    { e = new int[size]; }
+        Precision precision()               { return Precision.INT; }
+        double get(int i)                   { return e[i]; }
+        void set(int i, double energy)      { e[i] = energy < 0 ? -1 : (int) Math.min(Integer.MAX_VALUE, Math.ceil(energy)); }
+        void set(int offset, double[] energy, int from, int to) {
+            for (int x = from; x < to; x++) set(offset + x, energy[x]);
+        }
+        void move(int src, int dst, int length) { System.arraycopy(e, src, e, dst, length); }
+        void clear()                        { Arrays.fill(e, -1); }
+        EnergyMap copyShape()               { return create(Precision.INT, e.length, 0); }
+        long bytes()                        { return 4 * (long) e.length; }
+        EnergyMap copy()                    { IntMap m = new IntMap(e.length); System.arraycopy(e, 0, m.e, 0, e.length); return m; }
+    }
+
+    private static final class ShortMap extends EnergyMap {
+        private static final char NONE = 65535;
+        private final char[] e;             // unsigned 16-bit steps of max/65534
+        private final double max, scale;
+        ShortMap(int size, double max)      { e = new char[size]; this.max = max; scale = 65534 / max; }
+        Precision precision()               { return Precision.SHORT; }
+        double get(int i)                   { return e[i] == NONE ? INVALID : e[i] / scale; }
+        void set(int i, double energy)      { e[i] = energy < 0 ? NONE : (char) Math.min(65534, Math.ceil(energy * scale)); }
+        void set(int offset, double[] energy, int from, int to) {
+            for (int x = from; x < to; x++) set(offset + x, energy[x]);
+        }
+        void move(int src, int dst, int length) { System.arraycopy(e, src, e, dst, length); }
+        void clear()                        { Arrays.fill(e, NONE); }
+        EnergyMap copyShape()               { return create(Precision.SHORT, e.length, max); }
+        long bytes()                        { return 2 * (long) e.length; }
+        EnergyMap copy()                    { ShortMap m = new ShortMap(e.length, max); System.arraycopy(e, 0, m.e, 0, e.length); return m; }
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+/**
+ *  The entropy energy: the Sobel energy plus the Shannon entropy of the
+ *  luminance histogram (16 bins) in the 9-by-9 window around the pixel.
+ *  Textured regions such as foliage or fabric score high even where
+ *  individual gradients are weak, which protects them on hero images at
+ *  roughly ten times the cost of the gradient energies.
+ *  <p>
+ *  Each call to <tt>energyRow</tt> first fills the window of its first
+ *  pixel (81 reads) and then slides it (18 reads per pixel), so it pays
+ *  off on long runs such as the bulk fill. One-pixel calls, which is how
+ *  energies are computed lazily for banded searches and <tt>energy(x, y)</tt>,
+ *  pay for the whole window every time; prefer a gradient energy there.
+ */
+public final class EntropyEnergy implements EnergyFunction {
+    private static final int R = 4;                        // window radius
+    private static final int N = (2*R + 1) * (2*R + 1);    // pixels per window
+    private static final double WEIGHT = 32;               // entropy scale vs gradient
+
+    // TERM[c] = -p log2 p for a bin holding c of the N window pixels
+    private static final double[] TERM = new double[N + 1];
+    static {
+        for (int c = 1; c <= N; c++) {
+            double p = (double) c / N;
+            TERM[c] = -p * Math.log(p) / Math.log(2);
+        }
+    }
+
+    private final SobelEnergy sobel = new SobelEnergy();
+
+    // window histogram, one per thread: rows are filled by parallel tasks
+    private static final ThreadLocal<int[]> HIST = ThreadLocal.withInitial(() -> new int[16]);
+
+    @Override
+    public void energyRow(int[] rgb, int stride, int width, int height, int y,
+                          int from, int to, double[] energy, int offset) {
+        if (from >= to) return;
+        sobel.energyRow(rgb, stride, width, height, y, from, to, energy, offset);
+
+        // slide the window histogram along the row: one column in, one out
+        int[] hist = HIST.get();
+        Arrays.fill(hist, 0);
+        for (int dx = -R; dx <= R; dx++)
+            column(rgb, stride, width, height, y, from + dx, hist, 1);
+        for (int x = from; x < to; x++) {
+            if (x > from) {
+                column(rgb, stride, width, height, y, x - R - 1, hist, -1);
+                column(rgb, stride, width, height, y, x + R, hist, 1);
+            }
+            double e = 0;
+            for (int b = 0; b < 16; b++)
+                e += TERM[hist[b]];
+            energy[offset + x] += WEIGHT * e;
+        }
+    }
+
+    // add (sign 1) or remove (sign -1) the window column x of row y
+    private static void column(int[] rgb, int stride, int width, int height, int y,
+                               int x, int[] hist, int sign) {
+        x = Math.floorMod(x, width);
+        for (int dy = -R; dy <= R; dy++) {
+            int row = Math.floorMod(y + dy, height);
+            hist[SobelEnergy.luma(rgb[row * stride + x]) >> 4] += sign;
+        }
+    }
+
+    @Override
+    public double maxEnergy() {
+        return 2 * 4 * 255 + WEIGHT * 4;              // Sobel plus at most 4 bits of entropy
+    }
+
+    @Override
+    public int radius() {
+        return R;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ *  A per-pixel forward energy: the luminance difference of the pixels that
+ *  become neighbours when this pixel is removed. A seam entering from the
+ *  upper left, from above or from the upper right joins the left and right
+ *  neighbours, plus the pixel above with the left or right neighbour
+ *  respectively; this energy is the average of those three costs.
+ *  <p>
+ *  The costs depend on the seam running top to bottom, so the energy is
+ *  not isotropic: <tt>SeamCarver</tt> recomputes it when switching to
+ *  horizontal seams.
+ *  <p>
+ *  Averaging makes this a backward approximation of forward energy, in
+ *  luma units. <tt>SeamCarver.CostModel.FORWARD</tt> charges the exact cost
+ *  of the step each seam takes and uses no energy function.
+ */
+public final class ForwardEnergy implements EnergyFunction {
+
+    @Override
+    public void energyRow(int[] rgb, int stride, int width, int height, int y,
+                          int from, int to, double[] energy, int offset) {
+        int row = y * stride;
+        int up  = (y == 0 ? height - 1 : y - 1) * stride;
+
+        for (int x = from; x < to; x++) {
+            int left  = SobelEnergy.luma(rgb[row + (x == 0 ? width - 1 : x - 1)]);
+            int right = SobelEnergy.luma(rgb[row + (x == width - 1 ? 0 : x + 1)]);
+            int above = SobelEnergy.luma(rgb[up + x]);
+            int cu = Math.abs(right - left);
+            int cl = Math.abs(above - left);
+            int cr = Math.abs(above - right);
+            energy[offset + x] = cu + (cl + cr) / 3.0;
+        }
+    }
+
+    @Override
+    public double maxEnergy() {
+        return 255 + 2 * 255 / 3.0;              // cu plus the average of the two diagonal costs
+    }
+
+    @Override
+    public int radius() {
+        return 1;
+    }
+
+    @Override
+    public boolean isotropic() {
+        return false;
+    }
+}
@@ -30,9 +30,14 @@ import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.concurrent.CancellationException;
+import java.util.function.BiConsumer;
 
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
@@ -42,6 +47,7 @@ import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 
 import java.util.*;
 
@@ -68,12 +74,14 @@ import java.util.*;
  */
 public final class Picture implements ActionListener, ComponentListener {
     private BufferedImage image;               // the rasterized image
+    private int[] pixels;                      // packed RGB raster backing image
     private static JFrame frame;                      // on-screen view
     private String filename;                   // name of file
     private boolean isOriginUpperLeft = true;  // location of origin
     private int width, height;                 // width and height
     private int pre_width, pre_height;
     private static int origWidth, origHeight;
+    private ResizeService resizer;             // carves the opened image off the EDT
 
    /**
      * Initializes a blank <tt>width</tt>-by-<tt>height</tt> picture, with <tt>width</tt> columns
@@ -88,7 +96,7 @@ public final class Picture implements ActionListener, ComponentListener {
         this.width  = width;
         this.height = height;
                 
-        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        bind(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
         // set to TYPE_INT_ARGB to support transparency
         filename = width + "-by-" + height;
     }
@@ -102,17 +110,16 @@ public final class Picture implements ActionListener, ComponentListener {
         width  = picture.width();
         height = picture.height();
                 
-        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        bind(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
         filename = picture.filename;
-        for (int col = 0; col < width(); col++)
-            for (int row = 0; row < height(); row++)
-                image.setRGB(col, row, picture.get(col, row).getRGB());
+        isOriginUpperLeft = picture.isOriginUpperLeft;
+        System.arraycopy(picture.pixels, 0, pixels, 0, width * height);
     }
 
    /**
      * Initializes a picture by reading from a file or URL.
      *
-     * @param filename the name of the file (.png, .gif, or .jpg) or URL.
+     * @param filename the name of the file (.png, .gif, .jpg or .raw) or URL.
      */
     public Picture(String filename) {
         this.filename = filename;
@@ -120,7 +127,7 @@ public final class Picture implements ActionListener, ComponentListener {
             // try to read from file in working directory
             File file = new File(filename);
             if (file.isFile()) {
-                image = ImageIO.read(file);
+                image = read(file);
             }
 
             // now try to read from file in same directory as this .class file
@@ -136,8 +143,7 @@ public final class Picture implements ActionListener, ComponentListener {
                 throw new IllegalArgumentException("Invalid image file: " + filename);
             }
 
-            width  = image.getWidth(null);
-            height = image.getHeight(null);
+            bind(image);
             origWidth = width;
             origHeight = height;
         }
@@ -155,7 +161,7 @@ public final class Picture implements ActionListener, ComponentListener {
      */
     public Picture(File file) {
         try {
-            image = ImageIO.read(file);
+            image = read(file);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -164,21 +170,52 @@ public final class Picture implements ActionListener, ComponentListener {
         if (image == null) {
             throw new RuntimeException("Invalid image file: " + file);
         }
-        width  = image.getWidth(null);
-        height = image.getHeight(null);
+        bind(image);
         filename = file.getName();
     }
 
+    // decode an image file, or map it directly if it is a raw raster
+    private static BufferedImage read(File file) throws IOException {
+        if (RawRaster.isRaw(file.getName())) return RawRaster.read(file);
+        return ImageIO.read(file);
+    }
+
     public BufferedImage getImage() {
     	return image;
     }
     
     public void setImage(BufferedImage _image) {
-    	image = _image;
-    	width = image.getWidth(null);
-    	height = image.getHeight(null);
+    	bind(_image);
+    }
+
+    // adopt the given image, copying it into a new TYPE_INT_RGB image if
+    // needed so that its raster can be addressed directly as a packed int[]
+    private void bind(BufferedImage img) {
+        if (!isDense(img)) {
+            BufferedImage rgb = new BufferedImage(img.getWidth(null), img.getHeight(null), BufferedImage.TYPE_INT_RGB);
+            Graphics g = rgb.getGraphics();
+            g.drawImage(img, 0, 0, null);
+            g.dispose();
+            img = rgb;
+        }
+        image  = img;
+        pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        width  = img.getWidth(null);
+        height = img.getHeight(null);
     }
     
+    // true if pixel (x, y) of img is element y*width+x of its int[] data,
+    // which subimages and other views sharing a larger raster are not
+    private static boolean isDense(BufferedImage img) {
+        if (img.getType() != BufferedImage.TYPE_INT_RGB) return false;
+        WritableRaster raster = img.getRaster();
+        if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)) return false;
+        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        return model.getScanlineStride() == img.getWidth()
+            && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+            && raster.getDataBuffer().getOffset() == 0;
+    }
+
     public Graphics getGraphics() {
     	return image.getGraphics();
     }
@@ -224,7 +261,7 @@ public final class Picture implements ActionListener, ComponentListener {
     			return;
             File file = new File(filename);
             if (file.isFile()) {
-                image = ImageIO.read(file);
+                image = read(file);
             }
 
             // now try to read from file in same directory as this .class file
@@ -240,8 +277,7 @@ public final class Picture implements ActionListener, ComponentListener {
                 throw new IllegalArgumentException("Invalid image file: " + filename);
             }
 
-            width  = image.getWidth(null);
-            height = image.getHeight(null);
+            bind(image);
             origWidth = width;
             origHeight = height;
         }
@@ -331,8 +367,37 @@ public final class Picture implements ActionListener, ComponentListener {
     public Color get(int col, int row) {
         if (col < 0 || col >= width())  throw new IndexOutOfBoundsException("col must be between 0 and " + (width()-1));
         if (row < 0 || row >= height()) throw new IndexOutOfBoundsException("row must be between 0 and " + (height()-1));
-        if (isOriginUpperLeft) return new Color(image.getRGB(col, row));
-        else                   return new Color(image.getRGB(col, height - row - 1));
+        return new Color(pixels[index(col, row)]);
+    }
+
+   /**
+     * Returns the color of pixel (<tt>col</tt>, <tt>row</tt>) as a packed
+     * <tt>0xAARRGGBB</tt> int, without allocating a <tt>Color</tt>.
+     *
+     * @param col the column index
+     * @param row the row index
+     * @return the packed color of pixel (<tt>col</tt>, <tt>row</tt>)
+     * @throws IndexOutOfBoundsException unless both 0 &le; <tt>col</tt> &lt; <tt>width</tt>
+     *         and 0 &le; <tt>row</tt> &lt; <tt>height</tt>
+     */
+    public int getRGB(int col, int row) {
+        if (col < 0 || col >= width())  throw new IndexOutOfBoundsException("col must be between 0 and " + (width()-1));
+        if (row < 0 || row >= height()) throw new IndexOutOfBoundsException("row must be between 0 and " + (height()-1));
+        return 0xFF000000 | pixels[index(col, row)];
+    }
+
+   /**
+     * Copies row <tt>row</tt> into <tt>dst</tt> starting at <tt>offset</tt>.
+     * Each entry holds the packed RGB value in its low 24 bits.
+     *
+     * @param row the row index
+     * @param dst the destination array, with room for <tt>width</tt> entries
+     * @param offset the first index written in <tt>dst</tt>
+     * @throws IndexOutOfBoundsException unless 0 &le; <tt>row</tt> &lt; <tt>height</tt>
+     */
+    public void getRow(int row, int[] dst, int offset) {
+        if (row < 0 || row >= height()) throw new IndexOutOfBoundsException("row must be between 0 and " + (height()-1));
+        System.arraycopy(pixels, index(0, row), dst, offset, width);
     }
 
    /**
@@ -349,8 +414,42 @@ public final class Picture implements ActionListener, ComponentListener {
         if (col < 0 || col >= width())  throw new IndexOutOfBoundsException("col must be between 0 and " + (width()-1));
         if (row < 0 || row >= height()) throw new IndexOutOfBoundsException("row must be between 0 and " + (height()-1));
         if (color == null) throw new NullPointerException("can't set Color to null");
-        if (isOriginUpperLeft) image.setRGB(col, row, color.getRGB());
-        else                   image.setRGB(col, height - row - 1, color.getRGB());
+        pixels[index(col, row)] = color.getRGB();
+    }
+
+   /**
+     * Sets the color of pixel (<tt>col</tt>, <tt>row</tt>) to the given packed RGB value.
+     *
+     * @param col the column index
+     * @param row the row index
+     * @param rgb the packed color; the alpha byte is ignored
+     * @throws IndexOutOfBoundsException unless both 0 &le; <tt>col</tt> &lt; <tt>width</tt>
+     *         and 0 &le; <tt>row</tt> &lt; <tt>height</tt>
+     */
+    public void setRGB(int col, int row, int rgb) {
+        if (col < 0 || col >= width())  throw new IndexOutOfBoundsException("col must be between 0 and " + (width()-1));
+        if (row < 0 || row >= height()) throw new IndexOutOfBoundsException("row must be between 0 and " + (height()-1));
+        pixels[index(col, row)] = rgb;
+    }
+
+   /**
+     * Overwrites row <tt>row</tt> with <tt>width</tt> packed RGB values
+     * read from <tt>src</tt> starting at <tt>offset</tt>.
+     *
+     * @param row the row index
+     * @param src the source array
+     * @param offset the first index read from <tt>src</tt>
+     * @throws IndexOutOfBoundsException unless 0 &le; <tt>row</tt> &lt; <tt>height</tt>
+     */
+    public void setRow(int row, int[] src, int offset) {
+        if (row < 0 || row >= height()) throw new IndexOutOfBoundsException("row must be between 0 and " + (height()-1));
+        System.arraycopy(src, offset, pixels, index(0, row), width);
+    }
+
+    // raster index of pixel (col, row), honoring the origin convention
+    private int index(int col, int row) {
+        if (isOriginUpperLeft) return row * width + col;
+        else                   return (height - row - 1) * width + col;
     }
 
    /**
@@ -369,7 +468,7 @@ public final class Picture implements ActionListener, ComponentListener {
         if (this.height() != that.height()) return false;
         for (int col = 0; col < width(); col++)
             for (int row = 0; row < height(); row++)
-                if (!this.get(col, row).equals(that.get(col, row))) return false;
+                if (this.getRGB(col, row) != that.getRGB(col, row)) return false;
         return true;
     }
 
@@ -389,7 +488,7 @@ public final class Picture implements ActionListener, ComponentListener {
            // try to read from file in working directory
            File file = new File(filename);
            if (file.isFile()) {
-               image = ImageIO.read(file);
+               image = read(file);
            }
 
            // now try to read from file in same directory as this .class file
@@ -405,8 +504,9 @@ public final class Picture implements ActionListener, ComponentListener {
                throw new IllegalArgumentException("Invalid image file: " + filename);
            }
 
-           width  = image.getWidth(null);
-           height = image.getHeight(null);
+           bind(image);
+           if (resizer != null) resizer.close();
+           resizer = null;
            origWidth = width;
            origHeight = height;
        }
@@ -418,7 +518,7 @@ public final class Picture implements ActionListener, ComponentListener {
    }
    /**
      * Saves the picture to a file in a standard image format.
-     * The filetype must be .png or .jpg.
+     * The filetype must be .png, .jpg or .raw (see <tt>RawRaster</tt>).
      *
      * @param name the name of the file
      */
@@ -427,7 +527,7 @@ public final class Picture implements ActionListener, ComponentListener {
     }
 
    /**
-     * Saves the picture to a file in a PNG or JPEG image format.
+     * Saves the picture to a file in a PNG, JPEG or raw raster format.
      *
      * @param file the file
      */
@@ -436,7 +536,15 @@ public final class Picture implements ActionListener, ComponentListener {
         if (frame != null) frame.setTitle(filename);
         String suffix = filename.substring(filename.lastIndexOf('.') + 1);
         suffix = suffix.toLowerCase();
-        if (suffix.equals("jpg") || suffix.equals("png")) {
+        if (suffix.equals("raw")) {
+            try {
+                RawRaster.write(pixels, width, height, file);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        else if (suffix.equals("jpg") || suffix.equals("png")) {
             try {
                 ImageIO.write(image, suffix, file);
             }
@@ -445,7 +553,7 @@ public final class Picture implements ActionListener, ComponentListener {
             }
         }
         else {
-            System.out.println("Error: filename must end in .jpg or .png");
+            System.out.println("Error: filename must end in .jpg, .png or .raw");
         }
     }
 
@@ -482,47 +590,32 @@ public final class Picture implements ActionListener, ComponentListener {
     public void componentResized(ComponentEvent event)
     {        
         System.out.printf("%d-by-%d\n", frame.getContentPane().getWidth(),frame.getContentPane().getHeight());
-        SeamCarver seamcarver = new SeamCarver(this);
-        boolean redraw = false;
-        long t = System.currentTimeMillis();
-
-        if( frame.getContentPane().getWidth() < this.pre_width)
-        {
-        	int diff = this.pre_width - frame.getContentPane().getWidth();
-        	for(int i=0;i<diff;i++){
-		        try {
-					seamcarver.removeVerticalSeam(seamcarver.findVerticalSeam());
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-		        this.setImage(seamcarver.image());
-	        }
-        	redraw = true;
-        }
-        if( frame.getContentPane().getHeight() < this.pre_height)
-        {
-        	int diff = this.pre_height - frame.getContentPane().getHeight();
-        	for(int i=0;i<diff;i++){
-		        try {
-					seamcarver.removeHorizontalSeam(seamcarver.findHorizontalSeam());
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-		        this.setImage(seamcarver.image());
-	        }
-        	redraw = true;
-        }
-        
-        if(frame.getContentPane().getWidth() > origWidth && frame.getContentPane().getHeight() > origHeight){        
-        	restoreImage();
-        }
-        setPrevWH(width,height);
-        System.out.printf("Elapse Time:%d\n", System.currentTimeMillis()-t);
-        if(redraw)
-        	this.redraw();
-                
+        final long t = System.currentTimeMillis();
+
+        // carving runs on the service's worker; a burst of events only
+        // carves the latest size, and the result is shown back on the EDT
+        if (resizer == null)
+            resizer = new ResizeService(this);
+        int targetWidth  = Math.max(1, frame.getContentPane().getWidth());
+        int targetHeight = Math.max(1, frame.getContentPane().getHeight());
+        final ResizeService service = resizer;
+        service.resize(targetWidth, targetHeight).whenComplete(new BiConsumer<Picture, Throwable>() {
+            public void accept(final Picture picture, Throwable failure) {
+                if (failure != null) {
+                    if (!(failure instanceof CancellationException)) failure.printStackTrace();
+                    return;
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (service != resizer) return;      // another image was opened meanwhile
+                        setImage(picture.getImage());
+                        setPrevWH(width, height);
+                        System.out.printf("Elapse Time:%d\n", System.currentTimeMillis()-t);
+                        redraw();
+                    }
+                });
+            }
+        });
     };
 
     public void componentShown(ComponentEvent event)
@@ -553,10 +646,7 @@ public final class Picture implements ActionListener, ComponentListener {
                 
         SeamCarver seamcarver = new SeamCarver(picture);
         
-        seamcarver.removeHorizontalSeam(seamcarver.findHorizontalSeam());
-        seamcarver.removeHorizontalSeam(seamcarver.findHorizontalSeam());
-        seamcarver.removeHorizontalSeam(seamcarver.findHorizontalSeam());
-        seamcarver.removeHorizontalSeam(seamcarver.findHorizontalSeam());
+        seamcarver.resizeTo(picture.width(), picture.height()-4);
         
         
     }
@@ -0,0 +1,245 @@
+/******************************************************************************
+ *  Compilation:  javac ProgressiveCarver.java
+ *  Execution:    java ProgressiveCarver [image]
+ *  Dependencies: SeamCarver.java Picture.java
+ *
+ *  Preview-first seam carving: a coarse pass answers at once and a guided
+ *  full-resolution pass refines it in the background.
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ *  A <tt>ProgressiveCarver</tt> resizes a picture in two phases. It first
+ *  carves a copy downsampled by <tt>factor</tt> in each direction, which
+ *  costs about 1/<tt>factor</tt>&sup2; of a full carve. Every pixel of the
+ *  target is then sampled from the original pixel its coarse block came
+ *  from, giving a full-resolution preview with the coarse seams' layout.
+ *  <p>
+ *  The full-resolution refinement then runs in the background. Each fine
+ *  seam is searched only within a band around the coarse seam it falls
+ *  under, projected to full resolution. Energies outside the bands are
+ *  never computed.
+ */
+public final class ProgressiveCarver {
+    private final Picture original;
+    private final int factor;
+    private final Picture coarse;
+    private final ExecutorService executor;
+
+   /**
+     * Prepares progressive carving of <tt>picture</tt>, running the
+     * refinement on the common fork/join pool.
+     *
+     * @param picture the picture to carve; it is copied
+     * @param factor the downscale factor of the coarse pass, at least 2
+     * @throws IllegalArgumentException if <tt>factor</tt> is less than 2
+     */
+    public ProgressiveCarver(Picture picture, int factor) {
+        this(picture, factor, ForkJoinPool.commonPool());
+    }
+
+   /**
+     * Prepares progressive carving of <tt>picture</tt>, running the
+     * refinement on <tt>executor</tt>, which the caller keeps ownership of.
+     *
+     * @param picture the picture to carve; it is copied
+     * @param factor the downscale factor of the coarse pass, at least 2
+     * @param executor the pool running the refinement
+     * @throws IllegalArgumentException if <tt>factor</tt> is less than 2
+     * @throws NullPointerException if <tt>executor</tt> is <tt>null</tt>
+     */
+    public ProgressiveCarver(Picture picture, int factor, ExecutorService executor) {
+        if (factor < 2) throw new IllegalArgumentException("factor must be at least 2");
+        if (executor == null) throw new NullPointerException("executor must not be null");
+        this.original = new Picture(picture);
+        this.factor   = factor;
+        this.executor = executor;
+        this.coarse   = downsample(original, factor);
+    }
+
+   /**
+     * Resizes the picture to <tt>width</tt>-by-<tt>height</tt>. The preview is
+     * computed and handed to <tt>preview</tt> on the calling thread before
+     * this method returns; the refined picture completes the returned future.
+     *
+     * @param width the target width, between 1 and the original width
+     * @param height the target height, between 1 and the original height
+     * @param preview receives the approximate picture, or <tt>null</tt>
+     * @return the full-resolution result
+     * @throws IllegalArgumentException if the target is out of range
+     * @throws InterruptedException if interrupted during the coarse pass
+     */
+    public CompletableFuture<Picture> resize(final int width, final int height,
+                                             Consumer<? super Picture> preview) throws InterruptedException {
+        if (width  < 1 || width  > original.width())  throw new IllegalArgumentException("width must be between 1 and " + original.width());
+        if (height < 1 || height > original.height()) throw new IllegalArgumentException("height must be between 1 and " + original.height());
+
+        // coarse pass, recording the seams that guide the refinement
+        int cw = coarse.width(), ch = coarse.height();
+        int targetWidth  = Math.max(1, Math.min(cw, (int) Math.round(width  / (double) factor)));
+        int targetHeight = Math.max(1, Math.min(ch, (int) Math.round(height / (double) factor)));
+        SeamCarver seamcarver = new SeamCarver(coarse);
+        seamcarver.trackOrigins();
+        final int[][] vertical = new int[cw - targetWidth][];
+        for (int i = 0; i < vertical.length; i++) {
+            vertical[i] = seamcarver.findVerticalSeam();
+            seamcarver.removeVerticalSeam(vertical[i]);
+        }
+        final int[][] horizontal = new int[ch - targetHeight][];
+        for (int i = 0; i < horizontal.length; i++) {
+            horizontal[i] = seamcarver.findHorizontalSeam();
+            seamcarver.removeHorizontalSeam(horizontal[i]);
+        }
+        if (preview != null) preview.accept(preview(seamcarver, width, height));
+
+        return CompletableFuture.supplyAsync(new Supplier<Picture>() {
+            public Picture get() {
+                try {
+                    return refine(width, height, vertical, horizontal);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    // the full-resolution target, each pixel taken from the original block
+    // the carved coarse picture kept at that place
+    private Picture preview(SeamCarver seamcarver, int width, int height) {
+        int cw = seamcarver.width(), ch = seamcarver.height();
+        int ow = coarse.width();
+        Picture result = new Picture(width, height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            long fy = (long) y * ch * factor / height;          // position in the coarse grid, in fine units
+            int cy = (int) (fy / factor);
+            for (int x = 0; x < width; x++) {
+                long fx = (long) x * cw * factor / width;
+                int cx = (int) (fx / factor);
+                int origin = seamcarver.origin(cx, cy);
+                int sx = Math.min(original.width()  - 1, origin % ow * factor + (int) (fx % factor));
+                int sy = Math.min(original.height() - 1, origin / ow * factor + (int) (fy % factor));
+                row[x] = original.getRGB(sx, sy);
+            }
+            result.setRow(y, row, 0);
+        }
+        return result;
+    }
+
+    // carve the original at full resolution, searching fine seam n within a
+    // band around the coarse seam it falls under. This already runs as a task
+    // of executor, so the carver works sequentially: parallel work submitted
+    // back to a bounded executor would wait for the thread it is holding.
+    private Picture refine(int width, int height, int[][] vertical, int[][] horizontal) throws InterruptedException {
+        SeamCarver seamcarver = new SeamCarver(original, executor);
+        seamcarver.threadNo = 0;
+        int radius = 2 * factor;
+
+        int dv = original.width() - width;
+        int[] guide = new int[original.height()];
+        for (int n = 0; n < dv; n++) {
+            if (vertical.length == 0) {
+                seamcarver.removeVerticalSeam(seamcarver.findVerticalSeam());
+                continue;
+            }
+            int[] seam = vertical[(int) ((long) n * vertical.length / dv)];
+            for (int y = 0; y < guide.length; y++)
+                guide[y] = seam[Math.min(seam.length - 1, y / factor)] * factor + factor / 2;
+            seamcarver.removeVerticalSeam(seamcarver.findVerticalSeam(guide, radius));
+        }
+
+        int dh = original.height() - height;
+        guide = new int[width];
+        for (int n = 0; n < dh; n++) {
+            if (horizontal.length == 0) {
+                seamcarver.removeHorizontalSeam(seamcarver.findHorizontalSeam());
+                continue;
+            }
+            int[] seam = horizontal[(int) ((long) n * horizontal.length / dh)];
+            for (int x = 0; x < guide.length; x++)
+                guide[x] = seam[Math.min(seam.length - 1, x / factor)] * factor + factor / 2;
+            seamcarver.removeHorizontalSeam(seamcarver.findHorizontalSeam(guide, radius));
+        }
+        return seamcarver.picture();
+    }
+
+    // box-filtered copy of picture, one pixel per factor-by-factor block;
+    // blocks cut by the border average the pixels they have
+    private static Picture downsample(Picture picture, int factor) {
+        int w = picture.width(), h = picture.height();
+        int cw = (w + factor - 1) / factor, ch = (h + factor - 1) / factor;
+        Picture result = new Picture(cw, ch);
+        int[] row = new int[w];
+        int[] r = new int[cw], g = new int[cw], b = new int[cw], n = new int[cw];
+        int[] out = new int[cw];
+        for (int cy = 0; cy < ch; cy++) {
+            Arrays.fill(r, 0); Arrays.fill(g, 0);
+            Arrays.fill(b, 0); Arrays.fill(n, 0);
+            for (int y = cy * factor; y < Math.min(h, (cy + 1) * factor); y++) {
+                picture.getRow(y, row, 0);
+                for (int x = 0; x < w; x++) {
+                    int c = x / factor, p = row[x];
+                    r[c] += (p >> 16) & 0xFF;
+                    g[c] += (p >>  8) & 0xFF;
+                    b[c] +=  p        & 0xFF;
+                    n[c]++;
+                }
+            }
+            for (int c = 0; c < cw; c++)
+                out[c] = (r[c] / n[c]) << 16 | (g[c] / n[c]) << 8 | b[c] / n[c];
+            result.setRow(cy, out, 0);
+        }
+        return result;
+    }
+
+   /**
+     * Unit tests this <tt>ProgressiveCarver</tt> on a single-thread executor,
+     * which the refinement must finish on by itself. Carves the picture named
+     * on the command line, or a synthetic 400-by-300 one, to a size whose
+     * coarse pass removes no seam and to one whose coarse pass does.
+     *
+     * @param args an optional image file
+     * @throws Exception if a refinement fails or does not finish in time
+     */
+    public static void main(String[] args) throws Exception {
+        Picture picture;
+        if (args.length != 0) picture = new Picture(args[0]);
+        else {
+            picture = new Picture(400, 300);
+            int[] row = new int[picture.width()];
+            for (int y = 0; y < picture.height(); y++) {
+                for (int x = 0; x < row.length; x++)
+                    row[x] = (x * 255 / row.length) << 16 | (y * 255 / picture.height()) << 8 | (x ^ y) & 0xFF;
+                picture.setRow(y, row, 0);
+            }
+        }
+        int w = picture.width(), h = picture.height();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ProgressiveCarver carver = new ProgressiveCarver(picture, 4, executor);
+            int[][] sizes = { { w - 2, h }, { w, h - 2 }, { w * 3 / 4, h * 3 / 4 } };
+            for (int[] size : sizes) {
+                Picture result = carver.resize(size[0], size[1], null).get(60, TimeUnit.SECONDS);
+                if (result.width() != size[0] || result.height() != size[1])
+                    throw new AssertionError("expected " + size[0] + "-by-" + size[1] + ", got "
+                                             + result.width() + "-by-" + result.height());
+                System.out.printf("%d-by-%d -> %d-by-%d%n", w, h, result.width(), result.height());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
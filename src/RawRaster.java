@@ -0,0 +1,105 @@
+/******************************************************************************
+ *  Compilation:  javac RawRaster.java
+ *  Dependencies: none
+ *
+ *  A raw, uncompressed raster file format for passing pictures between
+ *  pipeline stages without image decoding or encoding.
+ *
+ ******************************************************************************/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Reads and writes <tt>.raw</tt> raster files. A file is a 16-byte header
+ *  (the magic <tt>"SCRW"</tt>, then width, height and format version as
+ *  big-endian ints) followed by <em>width</em>&middot;<em>height</em>
+ *  big-endian packed <tt>0xRRGGBB</tt> pixels, row by row from the top.
+ *  The top byte of a pixel is ignored on reading: pictures are opaque.
+ *  <p>
+ *  Files are accessed through <tt>FileChannel.map</tt>, so loading and
+ *  saving are single bulk copies between the page cache and the picture's
+ *  raster, with no decoding and no intermediate buffer. The copy itself
+ *  remains: <tt>Picture</tt> and <tt>SeamCarver</tt> work on heap
+ *  <tt>int[]</tt> rasters. To carve a file without loading it,
+ *  <tt>TiledCarver.open</tt> carves it in place a band at a time.
+ */
+public final class RawRaster {
+    static final int MAGIC   = 0x53435257;     // "SCRW"
+    static final int VERSION = 1;
+    static final int HEADER  = 16;             // bytes before pixel (0, 0)
+
+    private RawRaster() { }
+
+   /**
+     * Returns true if <tt>name</tt> has the <tt>.raw</tt> extension.
+     *
+     * @param name a file name
+     * @return <tt>true</tt> if the name ends in <tt>.raw</tt>, ignoring case
+     */
+    public static boolean isRaw(String name) {
+        return name.toLowerCase().endsWith(".raw");
+    }
+
+    // validate the header and return { width, height }
+    static int[] readHeader(FileChannel channel, File file) throws IOException {
+        if (channel.size() < HEADER) throw new IOException("Invalid raw raster: " + file);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+        int magic = header.getInt(), width = header.getInt(), height = header.getInt(), version = header.getInt();
+        if (magic != MAGIC || version != VERSION || width < 0 || height < 0
+            || channel.size() < HEADER + 4L * width * height)
+            throw new IOException("Invalid raw raster: " + file);
+        return new int[] { width, height };
+    }
+
+    static void writeHeader(FileChannel channel, int width, int height) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+        header.putInt(MAGIC).putInt(width).putInt(height).putInt(VERSION);
+        header.force();
+    }
+
+   /**
+     * Reads a raw raster into a <tt>TYPE_INT_RGB</tt> image.
+     *
+     * @param file the file
+     * @return the image
+     * @throws IOException if the file cannot be read or is not a raw raster
+     */
+    public static BufferedImage read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int[] size = readHeader(channel, file);
+            BufferedImage image = new BufferedImage(Math.max(1, size[0]), Math.max(1, size[1]), BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            long length = 4L * size[0] * size[1];
+            if (length > 0)
+                channel.map(FileChannel.MapMode.READ_ONLY, HEADER, length).asIntBuffer().get(pixels, 0, size[0] * size[1]);
+            return image;
+        }
+    }
+
+   /**
+     * Writes packed RGB pixels as a raw raster, replacing <tt>file</tt>.
+     *
+     * @param pixels the pixels, row by row
+     * @param width the number of columns
+     * @param height the number of rows
+     * @param file the destination
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(int[] pixels, int width, int height, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                 StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(channel, width, height);
+            long length = 4L * width * height;
+            if (length == 0) return;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, HEADER, length);
+            buffer.asIntBuffer().put(pixels, 0, width * height);
+            buffer.force();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/******************************************************************************
+ *  Compilation:  javac ResizeService.java
+ *  Dependencies: SeamIndex.java SeamCarver.java Picture.java
+ *
+ *  Asynchronous, coalescing seam-carving resizes of one picture.
+ *
+ ******************************************************************************/
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *  A <tt>ResizeService</tt> resizes one picture by seam carving on a worker
+ *  thread of its own and hands every result back as a
+ *  <tt>CompletableFuture</tt>. It is meant for callers that ask for a new
+ *  size far more often than a carve finishes, such as a window being
+ *  dragged or a server behind a slider.
+ *  <p>
+ *  Only the latest target matters. A request that is still waiting when a
+ *  newer one arrives is cancelled at once. A request that is already being
+ *  carved is cancelled too, stops at its next phase boundary and its result
+ *  is dropped. A burst of requests therefore costs at most one carve beyond
+ *  the one running. The first request builds a {@link SeamIndex} down to
+ *  half size, which is never abandoned, so later sizes within the original
+ *  are a filtering pass. Larger sizes insert seams.
+ *  <p>
+ *  The service uses no AWT windowing and works under
+ *  <tt>java.awt.headless=true</tt>.
+ */
+public final class ResizeService implements Closeable {
+
+    // one requested size and the future it completes
+    private static final class Request {
+        final int width, height;
+        final CompletableFuture<Picture> future = new CompletableFuture<Picture>();
+        Request(int width, int height) { this.width = width; this.height = height; }
+    }
+
+    private final Picture original;
+    private final ExecutorService worker;
+    private SeamIndex index;                   // built by the worker on first use
+
+    private Request pending;                   // newest request not yet started
+    private Request running;                   // request the worker is carving
+    private boolean scheduled, closed;         // guarded by this
+
+   /**
+     * Creates a service for <tt>picture</tt>.
+     *
+     * @param picture the picture to resize; it is copied on the calling thread
+     */
+    public ResizeService(Picture picture) {
+        this.original = new Picture(picture);
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "resize-service");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+   /**
+     * Returns the width of the original picture.
+     *
+     * @return the original width
+     */
+    public int width() {
+        return original.width();
+    }
+
+   /**
+     * Returns the height of the original picture.
+     *
+     * @return the original height
+     */
+    public int height() {
+        return original.height();
+    }
+
+   /**
+     * Asks for the picture resized to <tt>width</tt>-by-<tt>height</tt>,
+     * superseding every earlier request.
+     *
+     * @param width the target width
+     * @param height the target height
+     * @return a future that completes with a new picture of the requested
+     *         size, or is cancelled if a newer request supersedes it
+     * @throws IllegalArgumentException unless both sizes are positive
+     * @throws IllegalStateException if the service is closed
+     */
+    public CompletableFuture<Picture> resize(int width, int height) {
+        if (width < 1 || height < 1) throw new IllegalArgumentException("width and height must be positive");
+        Request request = new Request(width, height);
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("resize service is closed");
+            if (pending != null) pending.future.cancel(false);
+            if (running != null) running.future.cancel(false);
+            pending = request;
+            if (!scheduled) schedule();
+        }
+        return request.future;
+    }
+
+    // start a worker task draining the requests; guarded by this
+    private void schedule() {
+        scheduled = true;
+        worker.execute(new Runnable() {
+            public void run() { drain(); }
+        });
+    }
+
+    // serve the newest request until none is pending
+    private void drain() {
+        while (true) {
+            Request request;
+            synchronized (this) {
+                request = pending;
+                pending = null;
+                running = request;
+                if (request == null) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try {
+                Picture picture = carve(request);
+                if (picture != null) request.future.complete(picture);
+            }
+            catch (InterruptedException e) {
+                request.future.cancel(false);
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e) {
+                request.future.completeExceptionally(e);
+            }
+            catch (Error e) {
+                // the worker thread dies with e; a fresh task serves what is pending
+                request.future.completeExceptionally(e);
+                synchronized (this) {
+                    running = null;
+                    scheduled = false;
+                    if (pending != null && !closed) schedule();
+                }
+                throw e;
+            }
+            synchronized (this) {
+                running = null;
+            }
+        }
+    }
+
+    // the picture request asks for, or null once it has been cancelled
+    private Picture carve(Request request) throws InterruptedException {
+        if (index == null)
+            index = new SeamIndex(original, Math.max(1, width() / 2), Math.max(1, height() / 2));
+        if (request.future.isDone()) return null;
+
+        Picture picture = index.resize(Math.min(width(), request.width), Math.min(height(), request.height));
+        if (request.width > picture.width() || request.height > picture.height()) {
+            SeamCarver seamcarver = new SeamCarver(picture);
+            if (request.future.isDone()) return null;
+            seamcarver.insertVerticalSeams(request.width - picture.width());
+            if (request.future.isDone()) return null;
+            seamcarver.insertHorizontalSeams(request.height - picture.height());
+            picture = seamcarver.picture();
+        }
+        return picture;
+    }
+
+   /**
+     * Cancels every outstanding request and stops the worker thread.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (pending != null) pending.future.cancel(false);
+            if (running != null) running.future.cancel(false);
+            pending = null;
+        }
+        worker.shutdownNow();
+    }
+}
@@ -1,20 +1,84 @@
-import java.awt.Color;
-import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 
 
 public class SeamCarver {
 
-   private Picture p;
+   private Picture p;                  // materialized view of rgb, null when stale
    Map<Integer,Double> top_energy;
    Map<Integer,Double> sorted_top_energy;   
-   double cache[][];
+   EnergyMap cache;                    // energy per pixel, same layout as rgb
+   private EnergyFunction function = new DualGradientEnergy();
+   private CostModel costModel = CostModel.BACKWARD;
+   
+   /**
+    * How the DP charges a seam. BACKWARD sums the energy of the removed
+    * pixels. FORWARD instead charges the luminance differences of the
+    * pixels that become neighbours once the seam is gone, as in Rubinstein
+    * et al.'s forward energy, which avoids the jagged edges backward energy
+    * leaves on straight structures. The energy function does not take part
+    * in FORWARD seams; masks still do.
+    */
+   public enum CostModel { BACKWARD, FORWARD }
+   
+   /**
+    * The order in which resizeTo interleaves vertical and horizontal seams.
+    * VERTICAL_FIRST removes every vertical seam before the horizontal ones.
+    * GREEDY removes whichever of the two next seams is cheaper, at the cost
+    * of searching both orientations each step. OPTIMAL fills the transport
+    * map of Avidan and Shamir, a DP over (vertical, horizontal) seam counts
+    * that keeps the cheapest picture reaching each count. It usually finds
+    * the least total energy, but costs two seam searches per cell and keeps
+    * a row of intermediate pictures alive.
+    */
+   public enum SeamOrder { VERTICAL_FIRST, GREEDY, OPTIMAL }
+   
+   /** Mask weight of a pixel no seam may cross. */
+   public static final float PROTECT = Float.POSITIVE_INFINITY;
+   /** Mask weight of a pixel to be carved away. */
+   public static final float REMOVE = Float.NEGATIVE_INFINITY;
+   //what the DP charges for PROTECT and REMOVE: far beyond any seam's energy,
+   //yet finite so that paths crossing both still compare
+   private static final float MASKED = 1e12f;
+   
+   //carving works in place on a packed RGB buffer of w columns and h rows;
+   //buffer pixel (c,r) lives at rgb[r*stride+c]. Seams always run down the
+   //buffer rows, so removing one is a contiguous shift that only shrinks w.
+   //For horizontal seams the buffer holds the transposed picture instead.
+   private int rgb[];
+   private int stride;
+   private int w, h;
+   private boolean transposed;
+   //buffers the next transpose is written into, allocated on first use
+   private int spareRgb[];
+   private EnergyMap spareCache;
+   //index y*width+x in the original picture of every buffer pixel; only
+   //maintained once trackOrigins() has been called
+   private int origin[], spareOrigin[];
+   //per-pixel weight added to the energy in the DP, same layout as rgb; null
+   //when no mask is set. removing counts the REMOVE pixels left.
+   private float mask[], spareMask[];
+   private int removing;
+   
+   //DP scratch buffers, sized for the original picture and reused by every seam
+   private double dist[], next[];
+   private byte edge[];
+   //long-lived workers shared by every seam; owned by the caller, never shut down here
+   private final ExecutorService executor;
+   //stage timers and counters, possibly shared with other carvers
+   private CarverMetrics metrics = new CarverMetrics();
+   //energies energyAt computed since bandedSeam last reset it
+   private long lazyComputed;
+   //receives the one energy energyAt computes; lazy computation only ever
+   //runs on the thread driving the carver, never in the parallel fills
+   private final double lazyEnergy[] = new double[1];
+   //set while simulateSeams removes seams; insertion is charged for them
+   private boolean simulating;
    
    public static <K, V extends Comparable<? super V>> Map<K, V> seamcarverSortMap(final Map<K, V> mapToSort) {
 		List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(mapToSort.size());
@@ -41,384 +105,1286 @@ public class SeamCarver {
    
    public SeamCarver(Picture picture)                // create a seam carver object based on the given picture
    {
+	   this(picture, ForkJoinPool.commonPool());
+   }
+   
+   /**
+    * Creates a seam carver that runs its parallel work on <tt>executor</tt>.
+    * The executor is only borrowed: the caller keeps ownership and is
+    * responsible for shutting it down.
+    *
+    * @param picture the picture to carve
+    * @param executor the pool running energy and seam search tasks
+    * @throws NullPointerException if <tt>executor</tt> is <tt>null</tt>
+    */
+   public SeamCarver(Picture picture, ExecutorService executor)
+   {
+	   if (executor == null) throw new NullPointerException("executor must not be null");
+	   this.executor = executor;
 	   this.p = picture;
 	   
-	   cache = new double[p.width()][p.height()];
+	   w = stride = picture.width();
+	   h = picture.height();
+	   rgb = new int[stride*h];
+	   for(int y=0;y<h;y++)
+		   picture.getRow(y, rgb, y*stride);
+	   cache = EnergyMap.create(EnergyMap.Precision.DOUBLE, stride*h, function.maxEnergy());
+	   
+	   dist = new double[Math.max(w,h)];
+	   next = new double[Math.max(w,h)];
+	   edge = new byte[w*h];
+	   metrics.allocated(4L*rgb.length + cache.bytes() + 16L*dist.length + edge.length);
    }
    
    
    
+   //start over on picture, keeping this carver's settings and, when it fits,
+   //its buffers; for carving a sequence of frames without reallocating.
+   //Origins stay tracked if they were, the mask is cleared.
+   void reload(Picture picture)
+   {
+	   int width = picture.width(), height = picture.height();
+	   if(width*height > rgb.length){
+		   rgb = new int[width*height];
+		   cache = EnergyMap.create(cache.precision(), rgb.length, function.maxEnergy());
+		   if(origin != null)
+			   origin = new int[rgb.length];
+		   spareRgb = null;
+		   spareCache = null;
+		   spareOrigin = null;
+		   claim = null;
+		   dist = new double[Math.max(width,height)];
+		   next = new double[Math.max(width,height)];
+		   edge = new byte[width*height];
+		   metrics.allocated(4L*rgb.length + cache.bytes() + 16L*dist.length + edge.length
+				   + (origin == null ? 0 : 4L*origin.length));
+	   }
+	   else
+		   cache.clear();
+	   if(dist.length < Math.max(width,height)){
+		   dist = new double[Math.max(width,height)];
+		   next = new double[Math.max(width,height)];
+	   }
+	   
+	   this.p = picture;
+	   w = stride = width;
+	   h = height;
+	   transposed = false;
+	   for(int y=0;y<h;y++)
+		   picture.getRow(y, rgb, y*stride);
+	   if(origin != null)
+		   for(int i=0;i<w*h;i++)
+			   origin[i] = i;
+	   mask = null;
+	   spareMask = null;
+	   removing = 0;
+   }
+   
    public Picture picture()                          // current picture
    {
+	   if(p == null){
+		   long t = System.nanoTime();
+		   p = new Picture(width(),height());
+		   metrics.allocated(4L*w*h);
+		   if(!transposed){
+			   for(int y=0;y<h;y++)
+				   p.setRow(y, rgb, y*stride);
+		   }
+		   else{
+			   int row[] = new int[h];
+			   for(int y=0;y<w;y++){
+				   for(int x=0;x<h;x++)
+					   row[x] = rgb[x*stride+y];
+				   p.setRow(y, row, 0);
+			   }
+		   }
+		   record(CarverMetrics.Stage.MATERIALIZE, t, 1);
+	   }
 	   return p;
    }
    
    public BufferedImage image()                          // current picture
    {
-	   return p.getImage();
+	   return picture().getImage();
    }
    
    public     int width()                            // width of current picture
    {
-	   return p.width();
+	   return transposed ? h : w;
    }
    
    public     int height()                           // height of current picture
    {
-	   return p.height();
+	   return transposed ? w : h;
+   }
+   
+   //start recording where every pixel came from, see origin(x,y). Must be
+   //called before the first seam is removed.
+   void trackOrigins()
+   {
+	   if(origin != null)
+		   return;
+	   if(transposed || w*h != rgb.length)
+		   throw new IllegalStateException("origins must be tracked before carving");
+	   origin = new int[rgb.length];
+	   for(int i=0;i<origin.length;i++)
+		   origin[i] = i;
+	   metrics.allocated(4L*origin.length);
+   }
+   
+   //index y*width+x in the original picture of the pixel now at column x, row y
+   int origin(int x, int y)
+   {
+	   if(origin == null)
+		   throw new IllegalStateException("origins are not tracked");
+	   return transposed ? origin[x*stride+y] : origin[y*stride+x];
    }
    
-   //given 2 pixel, return the delta square of the RGB value
-   private double deltaSquare(Color p1, Color p2){
-	   double v = 0;
+   //bring the buffer into the layout where the wanted seams run down its
+   //rows, transposing pixels and cached energies together in 32x32 blocks
+   private void orient(boolean horizontal)
+   {
+	   if(transposed == horizontal)
+		   return;
+	   long t = System.nanoTime();
 	   
-		   v = Math.pow((p1.getRed()-p2.getRed()),2) +
-			   Math.pow((p1.getGreen()-p2.getGreen()),2) +
-			   Math.pow((p1.getBlue()-p2.getBlue()),2);		
+	   if(spareRgb == null){
+		   spareRgb = new int[rgb.length];
+		   spareCache = cache.copyShape();
+		   metrics.allocated(4L*spareRgb.length + spareCache.bytes());
+	   }
+	   if(origin != null && spareOrigin == null){
+		   spareOrigin = new int[origin.length];
+		   metrics.allocated(4L*spareOrigin.length);
+	   }
+	   if(mask != null && spareMask == null){
+		   spareMask = new float[mask.length];
+		   metrics.allocated(4L*spareMask.length);
+	   }
+	   int dstStride = h;
+	   boolean isotropic = function.isotropic();
+	   for(int r0=0;r0<h;r0+=32){
+		   int r1 = Math.min(h, r0+32);
+		   for(int c0=0;c0<w;c0+=32){
+			   int c1 = Math.min(w, c0+32);
+			   for(int r=r0;r<r1;r++){
+				   for(int c=c0;c<c1;c++){
+					   spareRgb[c*dstStride+r] = rgb[r*stride+c];
+					   spareCache.set(c*dstStride+r, isotropic ? cache.get(r*stride+c) : EnergyMap.INVALID);
+				   }
+				   if(origin != null)
+					   for(int c=c0;c<c1;c++)
+						   spareOrigin[c*dstStride+r] = origin[r*stride+c];
+				   if(mask != null)
+					   for(int c=c0;c<c1;c++)
+						   spareMask[c*dstStride+r] = mask[r*stride+c];
+			   }
+		   }
+	   }
 	   
-	   return v;
+	   int tmpRgb[] = rgb; rgb = spareRgb; spareRgb = tmpRgb;
+	   EnergyMap tmpCache = cache; cache = spareCache; spareCache = tmpCache;
+	   if(origin != null){
+		   int tmpOrigin[] = origin; origin = spareOrigin; spareOrigin = tmpOrigin;
+	   }
+	   if(mask != null){
+		   float tmpMask[] = mask; mask = spareMask; spareMask = tmpMask;
+	   }
+	   int tmp = w; w = h; h = tmp;
+	   stride = dstStride;
+	   transposed = horizontal;
+	   record(CarverMetrics.Stage.TRANSPOSE, t, 1);
+   }
+   
+   /**
+    * Returns the metrics this carver records its stages in.
+    *
+    * @return the metrics
+    */
+   public CarverMetrics getMetrics()
+   {
+	   return metrics;
+   }
+   
+   /**
+    * Makes this carver record into <tt>metrics</tt>, which may be shared
+    * with other carvers.
+    *
+    * @param metrics the metrics to record into
+    * @throws NullPointerException if <tt>metrics</tt> is <tt>null</tt>
+    */
+   public void setMetrics(CarverMetrics metrics)
+   {
+	   if (metrics == null) throw new NullPointerException("metrics must not be null");
+	   this.metrics = metrics;
+   }
+   
+   //charge the time since start to stage
+   private void record(CarverMetrics.Stage stage, long start, long count)
+   {
+	   metrics.record(stage, System.nanoTime()-start, count);
+   }
+   
+   /**
+    * Replaces the energy function; cached energies are discarded.
+    *
+    * @param function the new energy function
+    * @throws NullPointerException if <tt>function</tt> is <tt>null</tt>
+    */
+   public void setEnergyFunction(EnergyFunction function)
+   {
+	   if (function == null) throw new NullPointerException("energy function must not be null");
+	   this.function = function;
+	   setEnergyPrecision(cache.precision());
+   }
+   
+   public EnergyFunction getEnergyFunction()
+   {
+	   return function;
+   }
+   
+   /**
+    * Selects how cached energies are stored, trading accuracy for memory;
+    * see {@link EnergyMap}. Cached energies are discarded.
+    *
+    * @param precision the storage precision
+    * @throws NullPointerException if <tt>precision</tt> is <tt>null</tt>
+    */
+   public void setEnergyPrecision(EnergyMap.Precision precision)
+   {
+	   if (precision == null) throw new NullPointerException("precision must not be null");
+	   cache = EnergyMap.create(precision, rgb.length, function.maxEnergy());
+	   spareCache = null;
+	   metrics.allocated(cache.bytes());
+   }
+   
+   public EnergyMap.Precision getEnergyPrecision()
+   {
+	   return cache.precision();
+   }
+   
+   public void setCostModel(CostModel model)
+   {
+	   if (model == null) throw new NullPointerException("cost model must not be null");
+	   this.costModel = model;
+   }
+   
+   public CostModel getCostModel()
+   {
+	   return costModel;
    }
    
    public  double energy(int x, int y)               // energy of pixel at column x and row y
    {
-	   double e = 0;	   
-	   Color p1, p2;
-	   double dX,dY;	   
-	   
 	   if(x > width()-1 || y > height()-1 || x < 0 || y < 0){
 		   System.out.printf("Exception: x:%d. y:%d\n",x,y);
 		   throw new IndexOutOfBoundsException("out of range !");
 	   }
 	   
-	   if(cache[x][y]!=0)
-		   return cache[x][y];
-	   //find x delta square
-	   //check special boundary case
-	   if(x == 0){
-		   p1 = p.get(width()-1, y);
-		   p2 = p.get(1, y);
-	   }
-	   else if ( x == width()-1){
-		   p1 = p.get(x-1, y);
-	   	   p2 = p.get(0, y);
-       }
-   	   else{
-   		   p1 = p.get(x-1,y);
-   		   p2 = p.get(x+1,y);
-   	   }
-	   dX = deltaSquare(p1,p2);
-	   
-	   //find y delta square
-	   //check special boundary case
-	   if(y == 0){
-		   p1 = p.get(x,height()-1);
-		   p2 = p.get(x, 1);
-	   }
-	   else if ( y == height()-1){
-		   p1 = p.get(x, y-1);
-	   	   p2 = p.get(x, 0);
-       }
-   	   else{
-   		   p1 = p.get(x,y-1);
-   		   p2 = p.get(x,y+1);
-   	   }
-	   dY = deltaSquare(p1,p2);
-	   
-	   e = dX + dY;
-	   cache[x][y] = e;
-	   
-	   return e;	   	   
+	   return transposed ? energyAt(y,x) : energyAt(x,y);
    }
    
+   //energy of buffer pixel (x,y), computed on first use. Isotropic energies
+   //serve both buffer layouts; others are dropped when the layout changes.
+   private double energyAt(int x, int y)
+   {
+	   int i = y*stride+x;
+	   double e = cache.get(i);
+	   if(e<0){
+		   lazyComputed++;
+		   function.energyRow(rgb, stride, w, h, y, x, x+1, lazyEnergy, -x);
+		   cache.set(i, lazyEnergy[0]);
+		   e = cache.get(i);
+	   }
+	   return e;
+   }
    
-   private int findMinimunIndexArray(double[] value){
-	   
-	   int min = 1;
-	   	   	   
-	   if(value[min] > value[2]){
-			   min = 2;		   
+   //what the DP charges for buffer pixel (x,y) by itself: its energy, or for
+   //the forward model the edge its removal creates between its left and
+   //right neighbours, plus any mask weight
+   private double cost(int x, int y)
+   {
+	   double e;
+	   if(costModel == CostModel.FORWARD){
+		   int off = y*stride;
+		   e = Math.abs(SobelEnergy.luma(rgb[off+(x+1 < w ? x+1 : x)]) - SobelEnergy.luma(rgb[off+(x > 0 ? x-1 : x)]));
 	   }
-	   if( value[min] > value[0]){
-		   min = 0;
+	   else
+		   e = energyAt(x,y);
+	   return mask == null ? e : e + mask[y*stride+x];
+   }
+   
+   //fill the uncached entries of rows [start,stop), one run of columns at a
+   //time, and return how many were computed
+   private long energyRows(int start, int stop)
+   {
+	   long computed = 0;
+	   double row[] = new double[w];
+	   metrics.allocated(8L*row.length);
+	   for(int y=start;y<stop;y++){
+		   int off = y*stride;
+		   for(int x=0;x<w;){
+			   if(cache.get(off+x)>=0){
+				   x++;
+				   continue;
+			   }
+			   int end = x+1;
+			   while(end < w && cache.get(off+end)<0)
+				   end++;
+			   function.energyRow(rgb, stride, w, h, y, x, end, row, 0);
+			   cache.set(off, row, x, end);
+			   computed += end-x;
+			   x = end;
+		   }
 	   }
-	   //System.out.printf("value: %f,%f,%f,  minimun index:%d\n",value[0],value[1],value[2],min);
-	   return min;
+	   return computed;
    }
    
-   public EnergyResult findHorizontalSeam(int row)                 // sequence of indices for vertical seam
+   
+   //fill the energy cache for every pixel, splitting the rows across threadNo
+   //workers. Forward seams never read it, so it is then left to fill lazily.
+   //Package-private so that the JMH benchmarks in jmh/ can time the bulk fill.
+   void computeEnergy() throws InterruptedException
    {
-	   double e[]={Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE};
-	   int y = row;
-	   double total = 0;
-	   int index = 0;
-	   int v[] = new int[p.width()];
+	   if(costModel == CostModel.FORWARD)
+		   return;
+	   long t = System.nanoTime();
+	   long computed = 0;
+	   if(threadNo==0){
+		   computed = energyRows(0, h);
+		   metrics.energy((long)w*h, computed);
+		   record(CarverMetrics.Stage.ENERGY, t, 1);
+		   return;
+	   }
 	   
-	   v[0] = y;
-	   //start from the left.
-	   for(int i=1;i<p.width();i++){
-		   if(y-1 >= 0)			   
-			   e[0] = this.energy(i,y-1);
-		   else
-			   e[0] = Double.MAX_VALUE;
+	   class EnergyTasker implements Callable<Long> {
+		   private int start;
+		   private int stop;
 		   
-		   e[1] = this.energy(i,y);
+		   public EnergyTasker(int a, int b){ start=a;stop=b;}
 		   
-		   if(y+1 < p.height())
-			   e[2] = this.energy(i,y+1);
-		   else
-			   e[2] = Double.MAX_VALUE;
+		   public Long call(){
+			   return energyRows(start, stop);
+		   }
+	   }
+	   
+	   List<Callable<Long>> lst = new ArrayList<Callable<Long>>();
+	   
+	   int divide = (h + threadNo - 1)/threadNo;
+	   for(int i=0;i<threadNo;i++){
+		   int start = i*divide;
+		   int stop = Math.min(h, start+divide);
+		   if(start < stop)
+			   lst.add(new EnergyTasker(start, stop));
+	   }
+	   
+	   for(long n : invokeAll(lst))
+		   computed += n;
+	   metrics.energy((long)w*h, computed);
+	   record(CarverMetrics.Stage.ENERGY, t, 1);
+   }
+   
+   //run the tasks on the shared executor and wait for all of them. The first
+   //task failure is rethrown unchanged if unchecked, otherwise wrapped.
+   private <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException
+   {
+	   List<T> results = new ArrayList<T>(tasks.size());
+	   try{
+		   for(Future<T> item : executor.invokeAll(tasks))
+			   results.add(item.get());
+	   }catch (ExecutionException e){
+		   Throwable cause = e.getCause();
+		   if(cause instanceof RuntimeException)
+			   throw (RuntimeException) cause;
+		   if(cause instanceof Error)
+			   throw (Error) cause;
+		   throw new IllegalStateException("seam carver task failed", cause);
+	   }
+	   return results;
+   }
+   
+   //tiles narrower than this are not worth a task of their own
+   private static final int MIN_TILE = 128;
+   
+   //relax columns [lo,hi) of buffer row r from the previous row held in prev,
+   //writing the cumulative energy into cur. Both arrays hold column c at
+   //index c-base. Only columns in [e0,e1) record their step in edge.
+   private void relaxRow(double prev[], double cur[], int base, int r, int lo, int hi, int e0, int e1)
+   {
+	   if(costModel == CostModel.FORWARD){
+		   relaxRowForward(prev, cur, base, r, lo, hi, e0, e1);
+		   return;
+	   }
+	   int row = r*w;
+	   int across = w;
+	   for(int c=lo;c<hi;c++){
+		   int i = c-base;
+		   double best = prev[i];
+		   byte step = 0;
+		   if(c+1 < across && prev[i+1] < best){
+			   best = prev[i+1];
+			   step = 1;
+		   }
+		   if(c-1 >= 0 && prev[i-1] < best){
+			   best = prev[i-1];
+			   step = -1;
+		   }
+		   cur[i] = best + cost(c,r);
+		   if(c >= e0 && c < e1)
+			   edge[row+c] = step;
+	   }
+   }
+   
+   //relaxRow for the forward cost model: each step pays only for the edges
+   //the seam creates between pixels that become neighbours, in luma units. Coming from
+   //above joins left and right (cU); coming from the upper left or right
+   //additionally joins the pixel above with the left or right one. Pixels
+   //past the border are replaced by the border pixel.
+   private void relaxRowForward(double prev[], double cur[], int base, int r, int lo, int hi, int e0, int e1)
+   {
+	   int row = r*w;
+	   int across = w;
+	   int off = r*stride;
+	   int up = (r == 0 ? 0 : r-1)*stride;
+	   for(int c=lo;c<hi;c++){
+		   int i = c-base;
+		   int left  = SobelEnergy.luma(rgb[off+(c > 0 ? c-1 : c)]);
+		   int right = SobelEnergy.luma(rgb[off+(c+1 < across ? c+1 : c)]);
+		   int above = SobelEnergy.luma(rgb[up+c]);
+		   int cU = Math.abs(right-left);
 		   
-		   //System.out.printf("value: %d,%d:%f, %d,%d:%f, %d,%d:%f\n",x-1,i,e[0],x,i,e[1],x+1,i,e[2]);
-		   index = findMinimunIndexArray(e);
-		   y += index-1;
-		   total += e[index];
-		   v[i] = y;
-		   	   
+		   double best = prev[i] + cU;
+		   byte step = 0;
+		   if(c+1 < across && prev[i+1] + cU + Math.abs(above-right) < best){
+			   best = prev[i+1] + cU + Math.abs(above-right);
+			   step = 1;
+		   }
+		   if(c-1 >= 0 && prev[i-1] + cU + Math.abs(above-left) < best){
+			   best = prev[i-1] + cU + Math.abs(above-left);
+			   step = -1;
+		   }
+		   cur[i] = mask == null ? best : best + mask[off+c];
+		   if(c >= e0 && c < e1)
+			   edge[row+c] = step;
 	   }
+   }
+   
+   //one column tile of the DP. For a band of rows it recomputes a halo that
+   //shrinks by one column per row on each side, so a tile only needs the
+   //shared row above the band and every tile can run a whole band without
+   //waiting on its neighbours.
+   private class TileTasker implements Callable<Void> {
+	   private final int c0, c1;
+	   private final double a[], b[];
+	   private double prev[], cur[];
+	   private int r0, r1;
 	   
-	   EnergyResult result = new EnergyResult(v,total);
+	   TileTasker(int c0, int c1, int band){
+		   this.c0 = c0; this.c1 = c1;
+		   a = new double[c1-c0+2*band];
+		   b = new double[c1-c0+2*band];
+	   }
 	   
-	   return result;
+	   public Void call(){
+		   int band = r1-r0;
+		   int base = Math.max(0, c0-band);
+		   double src[] = a, dst[] = b;
+		   System.arraycopy(prev, base, src, 0, Math.min(w, c1+band)-base);
+		   for(int r=r0;r<r1;r++){
+			   int halo = r1-1-r;
+			   relaxRow(src, dst, base, r, Math.max(0, c0-halo), Math.min(w, c1+halo), c0, c1);
+			   double tmp[] = src; src = dst; dst = tmp;
+		   }
+		   System.arraycopy(src, c0-base, cur, c0, c1-c0);
+		   return null;
+	   }
+   }
    
+   //cumulative energy DP from the first buffer row down: distTo holds the
+   //cheapest path ending at each column of the current row, edgeTo the column
+   //step (-1,0,+1) taken from the previous row. Wide rows are split into
+   //threadNo column tiles that synchronize once per band of rows. Returns the
+   //minimum seam through the buffer and its total energy.
+   private EnergyResult seam() throws InterruptedException
+   {
+	   int across = w;
+	   int along = h;
+	   double distTo[] = sweep();
+	   long t = System.nanoTime();
+	   
+	   int c = 0;
+	   for(int i=1;i<across;i++)
+		   if(distTo[i] < distTo[c])
+			   c = i;
+	   double total = distTo[c];
+	   
+	   int v[] = new int[along];
+	   for(int r=along-1;r>=0;r--){
+		   v[r] = c;
+		   c += edge[r*across+c];
+	   }
+	   
+	   record(CarverMetrics.Stage.BACKTRACK, t, 1);
+	   return new EnergyResult(v,total);
    }
    
-   public int threadNo = 4;
-   public boolean profile=false;
-   public   int[] findHorizontalSeam() throws InterruptedException               // sequence of indices for horizontal seam
-   {	   
-	   long t = System.currentTimeMillis();	   
-	   EnergyResult r = null, c=null;
-	   	   	   
-	   if(threadNo==0){	   
-		   r = findHorizontalSeam(0);
-		   for(int i=0;i<p.height();i++){
-			   c = findHorizontalSeam(i);
-			   if(c.getTotalEnergy() < r.getTotalEnergy()){
-				   r = c;
-			   }		  
+   //the cumulative energy DP of seam(), leaving the step of every pixel in
+   //edge. Returns the array holding the last row's cumulative energies.
+   private double[] sweep() throws InterruptedException
+   {
+	   long t = System.nanoTime();
+	   int across = w;
+	   int along = h;
+	   double distTo[] = dist;
+	   double next[] = this.next;
+	   
+	   for(int c=0;c<across;c++)
+		   distTo[c] = cost(c,0);
+	   
+	   int tiles = Math.min(threadNo, across/MIN_TILE);
+	   if(tiles <= 1){
+		   for(int r=1;r<along;r++){
+			   relaxRow(distTo, next, 0, r, 0, across, 0, across);
+			   double tmp[] = distTo; distTo = next; next = tmp;
 		   }
 	   }
 	   else{
-		   class HorizontalTasker implements Callable<EnergyResult> {
-			   private int start;
-			   private int stop;
-			   
-			   public HorizontalTasker(int a, int b){ start=a;stop=b;}
-			   
-			   public EnergyResult call(){
-				   EnergyResult _min;	   
-				   EnergyResult _c;
-				   
-				   _min = findHorizontalSeam(start);
-				   for(int i=start;i<stop;i++){
-					   _c = findHorizontalSeam(i);
-					   if(_c.getTotalEnergy() < _min.getTotalEnergy()){
-						   _min = _c;
-					   }				  
-				   }
-				   return _min;
-			   }
-		   }
+		   int width = (across+tiles-1)/tiles;
+		   int band = Math.max(4, Math.min(64, width/8));
+		   List<TileTasker> lst = new ArrayList<TileTasker>();
+		   for(int c0=0;c0<across;c0+=width)
+			   lst.add(new TileTasker(c0, Math.min(across, c0+width), band));
 		   
-		   try{
-			   
-			   ExecutorService executorService = Executors.newFixedThreadPool(threadNo);
-			   
-			   List<Callable<EnergyResult>> lst = new ArrayList<Callable<EnergyResult>>();
-			   
-			   int divide = p.height()/threadNo;
-			   
-			   for(int i=0;i<threadNo;i++){
-				   if(i==0)
-					   lst.add( new HorizontalTasker(0,(i+1)*divide));			   
-				   else if(i==threadNo-1)
-					   lst.add( new HorizontalTasker(i*divide+1,(i+1)*divide));
-				   else
-					   lst.add( new HorizontalTasker(i*divide+1,p.height()));
-			   }		   
-			   
-			   List<Future<EnergyResult>> future = executorService.invokeAll(lst);
-			   
-			   r = future.get(0).get();
-			   for(Future<EnergyResult> item : future){
-				   if(item.get().getTotalEnergy() < r.getTotalEnergy())
-					   r = item.get(); 
+		   for(int r0=1;r0<along;r0+=band){
+			   for(TileTasker task : lst){
+				   task.prev = distTo; task.cur = next;
+				   task.r0 = r0; task.r1 = Math.min(along, r0+band);
 			   }
-			   /* shutdown your thread pool, else your application will keep running */
-		       executorService.shutdown();
-			   		   
-		   }catch (ExecutionException e){
-		   
+			   invokeAll(lst);
+			   double tmp[] = distTo; distTo = next; next = tmp;
 		   }
 	   }
-	   if(profile)
-		   System.out.printf("findHorizontalSeam Elapse Time:%d\n", System.currentTimeMillis()-t);
+	   record(CarverMetrics.Stage.SEARCH, t, 1);
+	   return distTo;
+   }
+   
+   public int threadNo = Runtime.getRuntime().availableProcessors();
+   /**
+    * @deprecated has no effect; stage timings are reported through
+    * {@link #getMetrics} and its {@link CarverMetrics.Listener}s
+    */
+   @Deprecated
+   public boolean profile=false;
+   //seams resizeTo removes per DP sweep, see removeVerticalSeams. 1 is exact;
+   //larger values trade seam quality for fewer sweeps
+   public int seamsPerPass = 1;
+   public   int[] findHorizontalSeam() throws InterruptedException               // sequence of indices for horizontal seam
+   {	   
+	   EnergyResult r = findSeam(true);
 	   return r.getSeam();
    }
    
    
-   public EnergyResult findVerticalSeam(int col)                 // sequence of indices for vertical seam
-   {	   
-	   double e[]={Double.MAX_VALUE,Double.MAX_VALUE,Double.MAX_VALUE};
-	   int x = col;
-	   double total = 0;
-	   int index = 0;
-	   int v[] = new int[p.height()];
+   public   int[] findVerticalSeam() throws InterruptedException                // sequence of indices for vertical seam
+   {
+	   EnergyResult r = findSeam(false);
+	   return r.getSeam();
+   }
+   
+   
+   
+   //vertical seam staying within radius columns of guide[y] in every row y,
+   //for a search guided by a coarser seam. Only energies inside the band are
+   //computed. Consecutive guide entries must differ by at most radius.
+   int[] findVerticalSeam(int guide[], int radius) throws InterruptedException
+   {
+	   orient(false);
+	   return bandedSeam(guide, radius).getSeam();
+   }
+   
+   //findVerticalSeam(guide, radius) for a horizontal seam, guided by guide[x]
+   int[] findHorizontalSeam(int guide[], int radius) throws InterruptedException
+   {
+	   orient(true);
+	   return bandedSeam(guide, radius).getSeam();
+   }
+   
+   //the DP of seam() restricted to columns center[r]-radius..center[r]+radius
+   //of every buffer row r, clamped to the buffer. Columns the previous row
+   //did not relax read as unreachable.
+   private EnergyResult bandedSeam(int center[], int radius)
+   {
+	   if(center.length != h)
+		   throw new IllegalArgumentException("guide must have " + h + " entries");
+	   long t = System.nanoTime();
+	   long requested = 0;
+	   lazyComputed = 0;
+	   int across = w;
+	   double distTo[] = dist;
+	   double next[] = this.next;
 	   
-	   v[0] = x;
-	   //start from the top.
-	   for(int i=1;i<p.height();i++){
-		   if(x-1 >= 0)			   
-			   e[0] = this.energy(x-1,i);
-		   else
-			   e[0] = Double.MAX_VALUE;
-		   
-		   e[1] = this.energy(x,i);
-		   
-		   if(x+1 < p.width())
-			   e[2] = this.energy(x+1,i);
-		   else
-			   e[2] = Double.MAX_VALUE;
-		   
-		   //System.out.printf("value: %d,%d:%f, %d,%d:%f, %d,%d:%f\n",x-1,i,e[0],x,i,e[1],x+1,i,e[2]);
-		   index = findMinimunIndexArray(e);
-		   x += index-1;
-		   total += e[index];
-		   v[i] = x;
-		   	   
+	   int lo = Math.max(0, Math.min(across-1, center[0]-radius));
+	   int hi = Math.min(across, Math.max(lo+1, center[0]+radius+1));
+	   for(int c=lo;c<hi;c++)
+		   distTo[c] = cost(c,0);
+	   requested += hi-lo;
+	   for(int r=1;r<h;r++){
+		   int nlo = Math.max(0, Math.min(across-1, center[r]-radius));
+		   int nhi = Math.min(across, Math.max(nlo+1, center[r]+radius+1));
+		   for(int c=Math.max(0,nlo-1);c<Math.min(across,nhi+1);c++)
+			   if(c < lo || c >= hi)
+				   distTo[c] = Double.POSITIVE_INFINITY;
+		   relaxRow(distTo, next, 0, r, nlo, nhi, nlo, nhi);
+		   double tmp[] = distTo; distTo = next; next = tmp;
+		   lo = nlo; hi = nhi;
+		   requested += hi-lo;
 	   }
+	   metrics.energy(requested, lazyComputed);
+	   record(CarverMetrics.Stage.SEARCH, t, 1);
+	   t = System.nanoTime();
 	   
-	   EnergyResult result = new EnergyResult(v,total);
+	   int c = lo;
+	   for(int i=lo+1;i<hi;i++)
+		   if(distTo[i] < distTo[c])
+			   c = i;
+	   double total = distTo[c];
 	   
-	   return result;
+	   int v[] = new int[h];
+	   for(int r=h-1;r>=0;r--){
+		   v[r] = c;
+		   c += edge[r*across+c];
+	   }
+	   record(CarverMetrics.Stage.BACKTRACK, t, 1);
+	   return new EnergyResult(v,total);
    }
    
+   //minimum seam in the given orientation, with its total energy
+   private EnergyResult findSeam(boolean horizontal) throws InterruptedException
+   {
+	   orient(horizontal);
+	   computeEnergy();
+	   return seam();
+   }
    
-   public   int[] findVerticalSeam() throws InterruptedException                // sequence of indices for vertical seam
+   //forget the cached energy of pixel (x,y), if it is inside the picture
+   private void invalidate(int x, int y)
    {
-	   EnergyResult r = null, c=null;
-	   long t = System.currentTimeMillis();	   
-	   
-	   if(threadNo==0){	   
-		   r = findVerticalSeam(0);
-		   for(int i=0;i<p.width();i++){
-			   c = findVerticalSeam(i);
-			   if(c.getTotalEnergy() < r.getTotalEnergy()){
-				   r = c;
-			   }
-			   
+	   if(x >= 0 && x < w && y >= 0 && y < h)
+		   cache.set(y*stride+x, EnergyMap.INVALID);
+   }
+   
+   //remove a seam running down the buffer rows: one contiguous shift per row
+   private void removeSeam(int[] seam)
+   {
+	   long t = System.nanoTime();
+	   for(int y=0; y<h;y++){
+		   int off = y*stride;
+		   System.arraycopy(rgb, off+seam[y]+1, rgb, off+seam[y], w-1-seam[y]);
+		   cache.move(off+seam[y]+1, off+seam[y], w-1-seam[y]);
+		   if(origin != null)
+			   System.arraycopy(origin, off+seam[y]+1, origin, off+seam[y], w-1-seam[y]);
+		   if(mask != null){
+			   if(mask[off+seam[y]] == -MASKED)
+				   removing--;
+			   System.arraycopy(mask, off+seam[y]+1, mask, off+seam[y], w-1-seam[y]);
 		   }
 	   }
-	   else{
-		   class VerticalTasker implements Callable<EnergyResult> {
-			   private int start;
-			   private int stop;
-			   
-			   public VerticalTasker(int a, int b){ start=a;stop=b;}
-			   
-			   public EnergyResult call(){
-				   EnergyResult _min;	   
-				   EnergyResult _c;
-				   
-				   _min = findVerticalSeam(start);
-				   for(int i=start;i<stop;i++){
-					   _c = findVerticalSeam(i);
-					   if(_c.getTotalEnergy() < _min.getTotalEnergy()){
-						   _min = _c;
-					   }				  
-				   }
-				   return _min;
-			   }
+	   
+	   w--;
+	   this.p = null;
+	   invalidateAround(seam);
+	   if(!simulating)
+		   record(CarverMetrics.Stage.REMOVAL, t, 1);
+   }
+   
+   //only pixels whose energy neighbourhood changed need their energy again.
+   //In row y that is every column within radius of the seam in rows
+   //y-radius..y+radius (wrapping), plus the wrapped border columns. seam[y]
+   //is the column that now follows the gap.
+   private void invalidateAround(int[] seam)
+   {
+	   int radius = function.radius();
+	   for(int y=0; y<h; y++){
+		   int lo = seam[y], hi = seam[y];
+		   for(int d=1; d<=radius; d++){
+			   int u = seam[Math.floorMod(y-d,h)], v = seam[(y+d)%h];
+			   lo = Math.min(lo, Math.min(u,v));
+			   hi = Math.max(hi, Math.max(u,v));
 		   }
-		   
-		   try{
-			   
-			   ExecutorService executorService = Executors.newFixedThreadPool(threadNo);
-			   
-			   List<Callable<EnergyResult>> lst = new ArrayList<Callable<EnergyResult>>();
-			   
-			   int divide = p.width()/threadNo;
-			   
-			   for(int i=0;i<threadNo;i++){
-				   if(i==0)
-					   lst.add( new VerticalTasker(0,(i+1)*divide));			   
-				   else if(i==threadNo-1)
-					   lst.add( new VerticalTasker(i*divide+1,(i+1)*divide));
-				   else
-					   lst.add( new VerticalTasker(i*divide+1,p.width()));
-			   }		   
-			   
-			   List<Future<EnergyResult>> future = executorService.invokeAll(lst);
-			   
-			   r = future.get(0).get();
-			   for(Future<EnergyResult> item : future){
-				   if(item.get().getTotalEnergy() < r.getTotalEnergy())
-					   r = item.get(); 
-			   }
-			   /* shutdown your thread pool, else your application will keep running */
-		       executorService.shutdown();
-			   		   
-		   }catch (ExecutionException e){
-		   
+		   for(int x=Math.max(0,lo-radius); x<Math.min(w,hi+radius); x++)
+			   cache.set(y*stride+x, EnergyMap.INVALID);
+		   for(int x=0; x<radius; x++){
+			   invalidate(x, y);
+			   invalidate(w-1-x, y);
 		   }
 	   }
-	   if(profile)
-		   System.out.printf("findVerticalSeam Elapse Time:%d\n", System.currentTimeMillis()-t);
-	   return r.getSeam();
    }
    
+   /**
+    * Removes up to <tt>k</tt> vertical seams found by a single DP sweep and
+    * compacts the buffer once. Seams are backtracked from the cheapest ends
+    * of the last row upwards; where a seam runs into a pixel an earlier one
+    * took, it turns to the cheapest free pixel above it, and it is dropped
+    * if there is none. The seams are therefore pixel-disjoint but only the
+    * first is a true minimum, so larger <tt>k</tt> trades quality for speed.
+    *
+    * @param k the most seams to remove, at least 1
+    * @return the number of seams removed
+    * @throws IllegalArgumentException if <tt>k</tt> is not positive
+    */
+   public int removeVerticalSeams(int k) throws InterruptedException
+   {
+	   if(k < 1) throw new IllegalArgumentException("k must be positive");
+	   orient(false);
+	   return removeSeams(k);
+   }
    
+   /**
+    * Removes up to <tt>k</tt> horizontal seams found by a single DP sweep;
+    * see {@link #removeVerticalSeams}.
+    *
+    * @param k the most seams to remove, at least 1
+    * @return the number of seams removed
+    * @throws IllegalArgumentException if <tt>k</tt> is not positive
+    */
+   public int removeHorizontalSeams(int k) throws InterruptedException
+   {
+	   if(k < 1) throw new IllegalArgumentException("k must be positive");
+	   orient(true);
+	   return removeSeams(k);
+   }
    
-   public void removeHorizontalSeam(int [] seam)     // remove horizontal seam from current picture
+   //scratch for removeSeams: 1 + the index of the seam that took each buffer
+   //pixel, indexed like edge; all zero between calls
+   private int claim[];
+   
+   //remove up to k seams down the buffer rows from one sweep, in one pass
+   private int removeSeams(int k) throws InterruptedException
    {
-	   Picture newPic = new Picture(p.width(),p.height()-1);
-	   int row=0;
-	   Graphics newG = newPic.getGraphics();
-	   long t = System.currentTimeMillis();
+	   k = Math.min(k, w-1);
+	   if(k <= 0)
+		   return 0;
+	   computeEnergy();
+	   if(k == 1){
+		   removeSeam(seam().getSeam());
+		   return 1;
+	   }
 	   
-	   	   
-	   for(int x=0; x<p.width();x++){
-		   if(seam[x]>0){
-			   BufferedImage a = p.getSubImage(x, 0, 1,seam[x]);		   
-			   newG.drawImage(a, x, 0, 1, seam[x], null);
+	   int across = w;
+	   final double last[] = sweep();
+	   long t = System.nanoTime();
+	   Integer ends[] = new Integer[across];
+	   for(int c=0;c<across;c++)
+		   ends[c] = c;
+	   Arrays.sort(ends, new Comparator<Integer>() {
+		   public int compare(Integer a, Integer b) { return Double.compare(last[a], last[b]); }
+	   });
+	   if(claim == null || claim.length < across*h){
+		   claim = new int[across*h];
+		   metrics.allocated(4L*claim.length);
+	   }
+	   
+	   List<int[]> seams = new ArrayList<int[]>();
+	   for(int i=0;i<across && seams.size()<k;i++){
+		   int c = ends[i];
+		   if(claim[(h-1)*across+c] != 0)
+			   continue;
+		   int v[] = new int[h];
+		   int id = seams.size()+1;
+		   int r = h-1;
+		   while(true){
+			   v[r] = c;
+			   claim[r*across+c] = id;
+			   if(r == 0)
+				   break;
+			   int nc = c + edge[r*across+c];
+			   if(claim[(r-1)*across+nc] != 0){
+				   nc = -1;
+				   for(int cc=Math.max(0,c-1);cc<=Math.min(across-1,c+1);cc++)
+					   if(claim[(r-1)*across+cc] == 0 && (nc < 0 || cost(cc,r-1) < cost(nc,r-1)))
+						   nc = cc;
+				   if(nc < 0)
+					   break;
+			   }
+			   c = nc;
+			   r--;
 		   }
-		   
-		   if(p.height()-1-seam[x] >0){
-			   BufferedImage b = p.getSubImage(x,seam[x]+1, 1, p.height()-1-seam[x]);
-			   newG.drawImage(b, x, seam[x], 1, p.height()-1-seam[x], null);
+		   if(r == 0)
+			   seams.add(v);
+		   else
+			   for(int y=r;y<h;y++)
+				   claim[y*across+v[y]] = 0;
+	   }
+	   
+	   record(CarverMetrics.Stage.BACKTRACK, t, seams.size());
+	   t = System.nanoTime();
+	   
+	   //compact every row in runs between claimed pixels, noting where each
+	   //seam's gap ends up for the invalidation
+	   int removed = seams.size();
+	   int gap[][] = new int[removed][h];
+	   for(int y=0;y<h;y++){
+		   int off = y*stride, row = y*across;
+		   int n = 0;
+		   for(int x=0;x<across;){
+			   int id = claim[row+x];
+			   if(id != 0){
+				   gap[id-1][y] = n;
+				   claim[row+x] = 0;
+				   if(mask != null && mask[off+x] == -MASKED)
+					   removing--;
+				   x++;
+				   continue;
+			   }
+			   int end = x+1;
+			   while(end < across && claim[row+end] == 0)
+				   end++;
+			   if(n != x){
+				   System.arraycopy(rgb, off+x, rgb, off+n, end-x);
+				   cache.move(off+x, off+n, end-x);
+				   if(origin != null)
+					   System.arraycopy(origin, off+x, origin, off+n, end-x);
+				   if(mask != null)
+					   System.arraycopy(mask, off+x, mask, off+n, end-x);
+			   }
+			   n += end-x;
+			   x = end;
 		   }
 	   }
 	   
-	   this.p = newPic;
-	   cache = new double[p.width()][p.height()];
-	   if(profile)
-		   System.out.printf("removeHorizontalSeam Elapse Time:%d\n", System.currentTimeMillis()-t);
+	   w -= removed;
+	   this.p = null;
+	   for(int[] seam : gap)
+		   invalidateAround(seam);
+	   record(CarverMetrics.Stage.REMOVAL, t, removed);
+	   return removed;
+   }
+   
+   public void removeHorizontalSeam(int [] seam)     // remove horizontal seam from current picture
+   {
+	   orient(true);
+	   removeSeam(seam);
    }
    
    
    
    public    void removeVerticalSeam(int[] seam)     // remove vertical seam from current picture
    {
-	   Picture newPic = new Picture(p.width()-1,p.height());
-	   int col=0;
-	   Graphics newG = newPic.getGraphics();
-	   long t = System.currentTimeMillis();
-	   	   
-	   for(int y=0; y<p.height();y++){
-		   if(seam[y]>0){
-			   BufferedImage a = p.getSubImage(0, y, seam[y], 1);		   
-			   newG.drawImage(a, 0, y, seam[y], 1, null);
+	   orient(false);
+	   removeSeam(seam);
+   }
+   
+   
+   
+   /**
+    * Sets a per-pixel weight that seams pay on top of the energy, or clears
+    * it when <tt>weights</tt> is <tt>null</tt>. {@link #PROTECT} keeps seams
+    * off a pixel and {@link #REMOVE} draws them to it; any finite weight
+    * biases the energy. The mask lives in the carver's buffer, so it moves
+    * with every seam removed or inserted.
+    *
+    * @param weights the weight of pixel (x,y) at <tt>weights[y*width()+x]</tt>
+    * @throws IllegalArgumentException if <tt>weights</tt> is not width() by height()
+    */
+   public void setMask(float weights[])
+   {
+	   spareMask = null;
+	   removing = 0;
+	   if(weights == null){
+		   mask = null;
+		   return;
+	   }
+	   if(weights.length != width()*height())
+		   throw new IllegalArgumentException("mask must have " + width()*height() + " weights");
+	   mask = new float[rgb.length];
+	   metrics.allocated(4L*mask.length);
+	   for(int y=0;y<height();y++)
+		   for(int x=0;x<width();x++){
+			   float m = weights[y*width()+x];
+			   if(m == REMOVE)
+				   removing++;
+			   m = m == PROTECT ? MASKED : m == REMOVE ? -MASKED : m;
+			   mask[transposed ? x*stride+y : y*stride+x] = m;
 		   }
+   }
+   
+   /**
+    * Removes every {@link #REMOVE} pixel of the mask by carving seams
+    * through them. The orientation is chosen once, up front: vertical seams
+    * when no row holds more removal pixels than some column does, horizontal
+    * seams otherwise, so the fewest seams are needed. Carving stops early if
+    * the picture shrinks to a single row or column.
+    *
+    * @return the carved picture
+    */
+   public Picture removeMasked() throws InterruptedException
+   {
+	   if(removing > 0){
+		   int rows[] = new int[height()], cols[] = new int[width()];
+		   for(int y=0;y<height();y++)
+			   for(int x=0;x<width();x++)
+				   if(mask[transposed ? x*stride+y : y*stride+x] == -MASKED){
+					   rows[y]++;
+					   cols[x]++;
+				   }
+		   int vertical = 0, horizontal = 0;
+		   for(int n : rows) vertical = Math.max(vertical, n);
+		   for(int n : cols) horizontal = Math.max(horizontal, n);
 		   
-		   if(p.width()-1-seam[y] >0){
-			   BufferedImage b = p.getSubImage(seam[y]+1, y, p.width()-1-seam[y], 1);
-			   newG.drawImage(b, seam[y], y, p.width()-1-seam[y], 1, null);
+		   if(vertical <= horizontal)
+			   while(removing > 0 && width() > 1)
+				   removeVerticalSeam(findVerticalSeam());
+		   else
+			   while(removing > 0 && height() > 1)
+				   removeHorizontalSeam(findHorizontalSeam());
+	   }
+	   return picture();
+   }
+   
+   /**
+    * Enlarges the picture by <tt>k</tt> columns. The k cheapest vertical
+    * seams are found in a single removal simulation on the current buffer,
+    * reusing its energies and DP buffers, and each is then duplicated in one
+    * pass, the copy averaging the seam pixel with its right neighbour. More
+    * than width-1 columns are inserted in several such batches.
+    *
+    * @param k the number of columns to insert
+    * @throws IllegalArgumentException if <tt>k</tt> is negative
+    */
+   public void insertVerticalSeams(int k) throws InterruptedException
+   {
+	   if(k < 0) throw new IllegalArgumentException("k must not be negative");
+	   orient(false);
+	   insertSeams(k);
+   }
+   
+   /**
+    * Enlarges the picture by <tt>k</tt> rows; see {@link #insertVerticalSeams}.
+    *
+    * @param k the number of rows to insert
+    * @throws IllegalArgumentException if <tt>k</tt> is negative
+    */
+   public void insertHorizontalSeams(int k) throws InterruptedException
+   {
+	   if(k < 0) throw new IllegalArgumentException("k must not be negative");
+	   orient(true);
+	   insertSeams(k);
+   }
+   
+   //duplicate the k cheapest seams running down the buffer rows, at most
+   //w-1 of them per simulation
+   private void insertSeams(int k) throws InterruptedException
+   {
+	   while(k > 0){
+		   int n = Math.min(k, Math.max(1, w-1));
+		   boolean dup[] = new boolean[stride*h];
+		   long simulated = 0;
+		   if(w == 1)
+			   for(int y=0;y<h;y++)
+				   dup[y*stride] = true;
+		   else
+			   simulated = simulateSeams(n, dup);
+		   expand(dup, n, simulated);
+		   k -= n;
+	   }
+   }
+   
+   //remove n seams from a scratch copy of the buffer, marking in dup the
+   //buffer index of every removed pixel; the buffer is then restored.
+   //Returns the nanoseconds spent removing, which are not charged to
+   //REMOVAL: no seam is removed from the picture.
+   private long simulateSeams(int n, boolean dup[]) throws InterruptedException
+   {
+	   int savedRgb[] = rgb.clone();
+	   metrics.allocated(4L*(2*rgb.length + (mask == null ? 0 : mask.length)));
+	   int savedOrigin[] = origin;
+	   float savedMask[] = mask == null ? null : mask.clone();
+	   int savedRemoving = removing;
+	   int width = w;
+	   origin = new int[rgb.length];
+	   for(int i=0;i<origin.length;i++)
+		   origin[i] = i;
+	   
+	   long removal = 0;
+	   simulating = true;
+	   try{
+		   for(int s=0;s<n;s++){
+			   computeEnergy();
+			   int seam[] = seam().getSeam();
+			   for(int y=0;y<h;y++)
+				   dup[origin[y*stride+seam[y]]] = true;
+			   long t = System.nanoTime();
+			   removeSeam(seam);
+			   removal += System.nanoTime()-t;
+		   }
+	   }
+	   finally{
+		   simulating = false;
+		   rgb = savedRgb;
+		   origin = savedOrigin;
+		   mask = savedMask;
+		   removing = savedRemoving;
+		   w = width;
+		   cache.clear();
+	   }
+	   return removal;
+   }
+   
+   //rebuild the buffer n columns wider, following every marked pixel by the
+   //average of it and its right neighbour. Energies are recomputed. The
+   //simulated nanoseconds of seam removal are charged to INSERTION as well.
+   private void expand(boolean dup[], int n, long simulated)
+   {
+	   long t = System.nanoTime();
+	   int dstStride = w+n;
+	   int out[] = new int[dstStride*h];
+	   int outOrigin[] = origin == null ? null : new int[out.length];
+	   float outMask[] = mask == null ? null : new float[out.length];
+	   for(int y=0;y<h;y++){
+		   int off = y*stride, o = y*dstStride;
+		   for(int x=0;x<w;x++){
+			   int a = rgb[off+x];
+			   if(outOrigin != null)
+				   outOrigin[o] = origin[off+x];
+			   if(outMask != null)
+				   outMask[o] = mask[off+x];
+			   out[o++] = a;
+			   if(dup[off+x]){
+				   int b = x+1 < w ? rgb[off+x+1] : a;
+				   if(outOrigin != null)
+					   outOrigin[o] = origin[off+x];
+				   if(outMask != null){
+					   outMask[o] = mask[off+x];
+					   if(mask[off+x] == -MASKED)
+						   removing++;
+				   }
+				   out[o++] = (a & b) + (((a ^ b) & 0xFEFEFEFE) >>> 1);
+			   }
+		   }
+	   }
+	   
+	   rgb = out;
+	   origin = outOrigin;
+	   mask = outMask;
+	   stride = w = dstStride;
+	   cache = EnergyMap.create(cache.precision(), rgb.length, function.maxEnergy());
+	   spareRgb = null;
+	   spareCache = null;
+	   spareOrigin = null;
+	   spareMask = null;
+	   if(dist.length < Math.max(w,h)){
+		   dist = new double[Math.max(w,h)];
+		   next = new double[Math.max(w,h)];
+	   }
+	   if(edge.length < w*h)
+		   edge = new byte[w*h];
+	   this.p = null;
+	   metrics.allocated(4L*rgb.length + cache.bytes() + (origin == null ? 0 : 4L*origin.length)
+			   + (mask == null ? 0 : 4L*mask.length));
+	   metrics.record(CarverMetrics.Stage.INSERTION, System.nanoTime()-t+simulated, n);
+   }
+   
+   /**
+    * Carves the picture down to <tt>width</tt>-by-<tt>height</tt>, removing
+    * vertical seams first and then horizontal ones. The energy cache, DP
+    * buffers and executor are shared by every seam, and the picture is
+    * only materialized once at the end.
+    *
+    * @param width the target width, between 1 and the current width
+    * @param height the target height, between 1 and the current height
+    * @return the carved picture
+    * @throws IllegalArgumentException if the target is larger than the current
+    *         picture or not positive
+    */
+   public Picture resizeTo(int width, int height) throws InterruptedException
+   {
+	   return resizeTo(width, height, SeamOrder.VERTICAL_FIRST);
+   }
+   
+   /**
+    * Carves the picture down to <tt>width</tt>-by-<tt>height</tt>,
+    * interleaving vertical and horizontal seams as <tt>order</tt> says.
+    * Isotropic energies stay cached across every change of orientation.
+    * Seams that remain once the order has no choice left are removed
+    * {@link #seamsPerPass} per DP sweep.
+    *
+    * @param width the target width, between 1 and the current width
+    * @param height the target height, between 1 and the current height
+    * @param order how to interleave the two orientations
+    * @return the carved picture
+    * @throws IllegalArgumentException if the target is larger than the current
+    *         picture or not positive
+    */
+   public Picture resizeTo(int width, int height, SeamOrder order) throws InterruptedException
+   {
+	   if(width < 1 || width > width())  throw new IllegalArgumentException("width must be between 1 and " + width());
+	   if(height < 1 || height > height()) throw new IllegalArgumentException("height must be between 1 and " + height());
+	   if(order == null) throw new NullPointerException("seam order must not be null");
+	   long t = System.nanoTime();
+	   
+	   if(order == SeamOrder.OPTIMAL)
+		   transportMap(width() - width, height() - height);
+	   while(order == SeamOrder.GREEDY && width() > width && height() > height){
+		   EnergyResult v = findSeam(false);
+		   EnergyResult hz = findSeam(true);
+		   if(v.getTotalEnergy() <= hz.getTotalEnergy())
+			   removeVerticalSeam(v.getSeam());
+		   else
+			   removeHorizontalSeam(hz.getSeam());
+	   }
+	   while(width() > width)
+		   removeVerticalSeams(Math.max(1, Math.min(seamsPerPass, width() - width)));
+	   while(height() > height)
+		   removeHorizontalSeams(Math.max(1, Math.min(seamsPerPass, height() - height)));
+	   
+	   record(CarverMetrics.Stage.RESIZE, t, 1);
+	   return picture();
+   }
+   
+   //the carving state of one transport map cell; the buffers are owned by
+   //the snapshot until loaded back into the carver
+   private static final class Snapshot {
+	   int rgb[], origin[];
+	   float mask[];
+	   EnergyMap cache;
+	   int w, h, stride, removing;
+	   boolean transposed;
+	   double cost;                   //cheapest total energy reaching this cell
+	   EnergyResult vertical, horizontal;   //next seams, found on demand
+   }
+   
+   //hand the current buffers over to a new snapshot
+   private Snapshot capture()
+   {
+	   Snapshot s = new Snapshot();
+	   s.rgb = rgb; s.origin = origin; s.mask = mask; s.cache = cache;
+	   s.w = w; s.h = h; s.stride = stride; s.removing = removing;
+	   s.transposed = transposed;
+	   return s;
+   }
+   
+   //take the buffers of s over; copy them first if s is still needed
+   private void load(Snapshot s, boolean copy)
+   {
+	   rgb = copy ? s.rgb.clone() : s.rgb;
+	   origin = copy && s.origin != null ? s.origin.clone() : s.origin;
+	   mask = copy && s.mask != null ? s.mask.clone() : s.mask;
+	   cache = copy ? s.cache.copy() : s.cache;
+	   if(copy)
+		   metrics.allocated(4L*rgb.length + cache.bytes() + (origin == null ? 0 : 4L*origin.length)
+				   + (mask == null ? 0 : 4L*mask.length));
+	   w = s.w; h = s.h; stride = s.stride; removing = s.removing;
+	   transposed = s.transposed;
+	   p = null;
+   }
+   
+   //search whichever next seams of s a later cell will need
+   private Snapshot explore(Snapshot s, boolean vertical, boolean horizontal) throws InterruptedException
+   {
+	   load(s, false);
+	   EnergyResult v = vertical ? findSeam(false) : null;
+	   EnergyResult hz = horizontal ? findSeam(true) : null;
+	   Snapshot next = capture();
+	   next.cost = s.cost;
+	   next.vertical = v;
+	   next.horizontal = hz;
+	   return next;
+   }
+   
+   //remove dv vertical and dh horizontal seams in the order of least total
+   //energy. Cell (i,j) of the transport map is the picture after i vertical
+   //and j horizontal seams; it is reached from (i-1,j) by a vertical seam or
+   //from (i,j-1) by a horizontal one, whichever costs less in total. Only the
+   //previous row of cells is kept, and the last cell is the result.
+   private void transportMap(int dv, int dh) throws InterruptedException
+   {
+	   Snapshot prev[] = new Snapshot[dh+1], cur[] = new Snapshot[dh+1];
+	   Snapshot start = capture();
+	   for(int i=0;i<=dv;i++){
+		   for(int j=0;j<=dh;j++){
+			   Snapshot up = i > 0 ? prev[j] : null, left = j > 0 ? cur[j-1] : null;
+			   Snapshot s;
+			   if(up == null && left == null)
+				   s = start;
+			   else{
+				   boolean fromUp = left == null || (up != null &&
+						   up.cost + up.vertical.getTotalEnergy() <= left.cost + left.horizontal.getTotalEnergy());
+				   //up has no later successor, left still feeds (i+1,j-1)
+				   if(fromUp){
+					   load(up, false);
+					   removeVerticalSeam(up.vertical.getSeam());
+				   }
+				   else{
+					   load(left, i < dv);
+					   removeHorizontalSeam(left.horizontal.getSeam());
+				   }
+				   s = capture();
+				   s.cost = fromUp ? up.cost + up.vertical.getTotalEnergy()
+						   : left.cost + left.horizontal.getTotalEnergy();
+			   }
+			   cur[j] = explore(s, i < dv, j < dh);
+			   if(i > 0)
+				   prev[j] = null;
 		   }
+		   Snapshot tmp[] = prev; prev = cur; cur = tmp;
+	   }
+	   load(prev[dh], false);
+   }
+   
+   //number of adjacent columns of picture between which the centre of the
+   //dark line jumps by two rows or more
+   private static int lineBreaks(Picture picture)
+   {
+	   int breaks = 0;
+	   double prev = -1;
+	   for(int x=0;x<picture.width();x++){
+		   double sum = 0;
+		   int n = 0;
+		   for(int y=0;y<picture.height();y++)
+			   if((picture.getRGB(x,y) & 0xFF) < 128){
+				   sum += y;
+				   n++;
+			   }
+		   double centre = sum/n;
+		   if(prev >= 0 && Math.abs(centre-prev) >= 1.5)
+			   breaks++;
+		   prev = centre;
 	   }
+	   return breaks;
+   }
+   
+   /**
+    * Unit tests the cost models. Narrows a noisy light picture crossed by a
+    * dark diagonal line by 60 seams with each model. Backward seams cross
+    * the line wherever its energy is lowest and break it into steps; forward
+    * seams must keep it continuous, its centre moving by at most one row
+    * from column to column.
+    *
+    * @param args ignored
+    * @throws InterruptedException if interrupted while carving
+    */
+   public static void main(String[] args) throws InterruptedException
+   {
+	   Picture picture = new Picture(200, 100);
+	   java.util.Random random = new java.util.Random(1);
+	   for(int y=0;y<100;y++)
+		   for(int x=0;x<200;x++){
+			   int v = Math.abs(y - 20 - 0.3*x) < 2 ? random.nextInt(32) : 224 + random.nextInt(32);
+			   picture.setRGB(x, y, v << 16 | v << 8 | v);
+		   }
 	   
-	   this.p = newPic;
-	   cache = new double[p.width()][p.height()];
-	   if(profile)
-		   System.out.printf("removeVerticalSeam Elapse Time:%d\n", System.currentTimeMillis()-t);
+	   int breaks[] = new int[CostModel.values().length];
+	   for(CostModel model : CostModel.values()){
+		   SeamCarver seamcarver = new SeamCarver(picture);
+		   seamcarver.setCostModel(model);
+		   for(int i=0;i<60;i++)
+			   seamcarver.removeVerticalSeam(seamcarver.findVerticalSeam());
+		   breaks[model.ordinal()] = lineBreaks(seamcarver.picture());
+		   System.out.printf("%-8s breaks in the line: %d\n", model, breaks[model.ordinal()]);
+	   }
+	   if(breaks[CostModel.FORWARD.ordinal()] > 0)
+		   throw new AssertionError("forward energy broke the line");
+	   if(breaks[CostModel.BACKWARD.ordinal()] == 0)
+		   throw new AssertionError("backward energy no longer shows the artifact this test is about");
    }
 }
@@ -0,0 +1,152 @@
+/******************************************************************************
+ *  Compilation:  javac SeamIndex.java
+ *  Dependencies: SeamCarver.java Picture.java
+ *
+ *  Precomputed seam removal order of a picture, for instant resizing.
+ *
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ *  A <tt>SeamIndex</tt> carves a picture once, down to a minimum size, and
+ *  records for every pixel the step at which its seam was removed. Any
+ *  target size between the minimum and the original can then be produced
+ *  by keeping, in every row (or column), the pixels whose seams would not
+ *  have been removed yet. This is a single O(<em>W</em>&middot;<em>H</em>)
+ *  filtering pass with no seam search, and growing back up to the original
+ *  size needs no disk I/O because the original pixels are kept.
+ *  <p>
+ *  Both seam orders are computed up front on the original picture, so no
+ *  size within range ever carves again. A target is produced by first
+ *  keeping, in every column, the pixels whose horizontal seams survive,
+ *  which leaves every column in place. Row <em>y</em> of that picture then
+ *  drops the columns the vertical seams cut in original row <em>y</em>,
+ *  which removes the same number of pixels from every row and keeps the
+ *  vertical seams connected. When only one dimension changes this is
+ *  exactly the carve the order was recorded from; when both change it
+ *  approximates carving the two directions one after the other. Sizes
+ *  below the minimum are carved from the minimum-size picture with a
+ *  <tt>SeamCarver</tt>.
+ */
+public final class SeamIndex {
+    private static final int KEPT = Integer.MAX_VALUE;
+
+    private final int width, height;
+    private final int minWidth, minHeight;
+    private final int[] rgb;                   // original pixels, y*width+x
+    private final int[] vertical;              // removal step of every original pixel
+    private final int[] horizontal;
+
+   /**
+     * Builds the vertical and horizontal seam index of <tt>picture</tt>.
+     *
+     * @param picture the picture to index; it is copied
+     * @param minWidth the smallest width served without carving
+     * @param minHeight the smallest height served without carving
+     * @throws IllegalArgumentException unless 1 &le; <tt>minWidth</tt> &le; width
+     *         and 1 &le; <tt>minHeight</tt> &le; height
+     * @throws InterruptedException if interrupted while carving
+     */
+    public SeamIndex(Picture picture, int minWidth, int minHeight) throws InterruptedException {
+        if (minWidth  < 1 || minWidth  > picture.width())  throw new IllegalArgumentException("minWidth must be between 1 and " + picture.width());
+        if (minHeight < 1 || minHeight > picture.height()) throw new IllegalArgumentException("minHeight must be between 1 and " + picture.height());
+        this.width      = picture.width();
+        this.height     = picture.height();
+        this.minWidth   = minWidth;
+        this.minHeight  = minHeight;
+        this.rgb        = new int[width * height];
+        for (int y = 0; y < height; y++)
+            picture.getRow(y, rgb, y * width);
+        this.vertical   = order(picture, false, minWidth);
+        this.horizontal = order(picture, true, minHeight);
+    }
+
+   /**
+     * Returns the width of the indexed picture.
+     *
+     * @return the original width
+     */
+    public int width() {
+        return width;
+    }
+
+   /**
+     * Returns the height of the indexed picture.
+     *
+     * @return the original height
+     */
+    public int height() {
+        return height;
+    }
+
+   /**
+     * Returns the indexed picture resized to <tt>width</tt>-by-<tt>height</tt>.
+     *
+     * @param width the target width, between 1 and the original width
+     * @param height the target height, between 1 and the original height
+     * @return a new picture of the requested size
+     * @throws IllegalArgumentException if the target is out of range
+     * @throws InterruptedException if interrupted while carving
+     */
+    public Picture resize(int width, int height) throws InterruptedException {
+        if (width  < 1 || width  > width())  throw new IllegalArgumentException("width must be between 1 and " + width());
+        if (height < 1 || height > height()) throw new IllegalArgumentException("height must be between 1 and " + height());
+
+        Picture picture = filter(Math.max(width, minWidth), Math.max(height, minHeight));
+        if (width < picture.width() || height < picture.height())
+            picture = new SeamCarver(picture).resizeTo(width, height);
+        return picture;
+    }
+    // carve picture down to min along one orientation, recording the step
+    // at which each pixel (indexed y*width+x) was removed
+    private static int[] order(Picture picture, boolean horizontal, int min) throws InterruptedException {
+        int width = picture.width(), height = picture.height();
+        int[] order = new int[width * height];
+        Arrays.fill(order, KEPT);
+
+        SeamCarver seamcarver = new SeamCarver(picture);
+        seamcarver.trackOrigins();
+        if (!horizontal) {
+            for (int step = 0; seamcarver.width() > min; step++) {
+                int[] seam = seamcarver.findVerticalSeam();
+                for (int y = 0; y < height; y++)
+                    order[seamcarver.origin(seam[y], y)] = step;
+                seamcarver.removeVerticalSeam(seam);
+            }
+        }
+        else {
+            for (int step = 0; seamcarver.height() > min; step++) {
+                int[] seam = seamcarver.findHorizontalSeam();
+                for (int x = 0; x < width; x++)
+                    order[seamcarver.origin(x, seam[x])] = step;
+                seamcarver.removeHorizontalSeam(seam);
+            }
+        }
+        return order;
+    }
+
+    // the original with the first (height - h) horizontal and (width - w)
+    // vertical seam steps removed
+    private Picture filter(int w, int h) {
+        // keep the pixels of every column whose horizontal seam survives
+        int cutoff = height - h;
+        int[] pixels = new int[width * h];
+        int[] next = new int[width];               // next output row of every column
+        for (int y = 0, i = 0; y < height; y++)
+            for (int x = 0; x < width; x++, i++)
+                if (horizontal[i] >= cutoff) pixels[next[x]++ * width + x] = rgb[i];
+
+        // then drop from row y the columns the vertical seams cut in original row y
+        cutoff = width - w;
+        Picture result = new Picture(w, h);
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            int n = 0;
+            for (int x = 0, i = y * width; x < width; x++, i++)
+                if (vertical[i] >= cutoff) row[n++] = pixels[i];
+            result.setRow(y, row, 0);
+        }
+        return result;
+    }
+}
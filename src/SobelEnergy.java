@@ -0,0 +1,41 @@
+/**
+ *  The Sobel energy: <tt>|Gx| + |Gy|</tt> of the 3-by-3 Sobel operator on
+ *  the pixel luminance. It is smoother than the dual gradient and cheap
+ *  enough for bulk thumbnails.
+ */
+public final class SobelEnergy implements EnergyFunction {
+
+    // integer luminance 0..255 of a packed pixel
+    static int luma(int p) {
+        return (((p >> 16) & 0xFF) * 77 + ((p >> 8) & 0xFF) * 150 + (p & 0xFF) * 29) >> 8;
+    }
+
+    @Override
+    public void energyRow(int[] rgb, int stride, int width, int height, int y,
+                          int from, int to, double[] energy, int offset) {
+        int row  = y * stride;
+        int up   = (y == 0 ? height - 1 : y - 1) * stride;
+        int down = (y == height - 1 ? 0 : y + 1) * stride;
+
+        for (int x = from; x < to; x++) {
+            int l = x == 0 ? width - 1 : x - 1;
+            int r = x == width - 1 ? 0 : x + 1;
+            int a = luma(rgb[up + l]),   b = luma(rgb[up + x]),   c = luma(rgb[up + r]);
+            int d = luma(rgb[row + l]),                           f = luma(rgb[row + r]);
+            int g = luma(rgb[down + l]), h = luma(rgb[down + x]), i = luma(rgb[down + r]);
+            int gx = (c + 2*f + i) - (a + 2*d + g);
+            int gy = (g + 2*h + i) - (a + 2*b + c);
+            energy[offset + x] = Math.abs(gx) + Math.abs(gy);
+        }
+    }
+
+    @Override
+    public double maxEnergy() {
+        return 2 * 4 * 255;              // |Gx| and |Gy| are each at most 4 * 255
+    }
+
+    @Override
+    public int radius() {
+        return 1;
+    }
+}
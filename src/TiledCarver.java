@@ -0,0 +1,369 @@
+/******************************************************************************
+ *  Compilation:  javac TiledCarver.java
+ *  Dependencies: EnergyFunction.java DualGradientEnergy.java RawRaster.java
+ *
+ *  Seam carving for rasters too large for the heap.
+ *
+ ******************************************************************************/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  A <tt>TiledCarver</tt> carves seams out of a raster stored in a file,
+ *  one band of rows at a time. The raster is a sequence of big-endian
+ *  packed RGB ints, row by row, and is carved in place.
+ *  <p>
+ *  Only one band of pixels (64MB unless set with <tt>setBandBytes</tt>), a few rows
+ *  of DP state and the seam itself are kept in memory. The DP step
+ *  directions (one byte per pixel) are spilled to a temporary file and read
+ *  back band by band for the backtrack. Horizontal seams are carved on a
+ *  transposed copy of the raster kept in a second temporary file.
+ *  <p>
+ *  Seams are the same as the ones <tt>SeamCarver</tt> finds with the
+ *  backward cost model and the same energy function.
+ *  <p>
+ *  Bands move through positional <tt>FileChannel</tt> reads and writes
+ *  rather than mappings. A mapping is only released when it is garbage
+ *  collected, which would pin address space for files of any size, and on
+ *  some platforms keep <tt>close</tt> from truncating the file or deleting
+ *  the temporary ones.
+ */
+public final class TiledCarver implements Closeable {
+    private static final int BAND_BYTES = 64 << 20;
+
+    private final Path path;
+    private final FileChannel file;            // the raster being carved
+    private final long offset;                 // byte position of pixel (0, 0)
+    private final int capacity;                // ints reserved per row in file
+
+    // the raster the seams currently run down: file, or its transpose
+    private FileChannel raster;
+    private long rasterOffset;
+    private int stride;                        // ints per row in raster
+    private int w, h;                          // size of that raster
+    private boolean transposed;
+    private FileChannel transpose;             // temporary, created on first use
+    private Path transposePath;
+
+    private final FileChannel edges;           // DP steps, one byte per pixel
+
+    private EnergyFunction function = new DualGradientEnergy();
+    private ByteBuffer io;                     // reused by every read and write
+    private int bandBytes = BAND_BYTES;
+    private boolean header;                    // file starts with a RawRaster header
+
+   /**
+     * Opens a headerless raster file for carving.
+     *
+     * @param raster the file holding <tt>width</tt>*<tt>height</tt> big-endian RGB ints
+     * @param width the number of columns
+     * @param height the number of rows
+     * @throws IllegalArgumentException if the file is too short
+     * @throws IOException if the file cannot be opened
+     */
+    public TiledCarver(Path raster, int width, int height) throws IOException {
+        this(raster, 0, width, height);
+    }
+
+   /**
+     * Opens a raw raster file (see <tt>RawRaster</tt>) for carving in place.
+     * Closing the carver updates the header to the carved size.
+     *
+     * @param raw the raw raster file
+     * @return the carver
+     * @throws IOException if the file cannot be opened or is not a raw raster
+     */
+    public static TiledCarver open(Path raw) throws IOException {
+        int[] size;
+        try (FileChannel channel = FileChannel.open(raw, StandardOpenOption.READ)) {
+            size = RawRaster.readHeader(channel, raw.toFile());
+        }
+        TiledCarver carver = new TiledCarver(raw, RawRaster.HEADER, size[0], size[1]);
+        carver.header = true;
+        return carver;
+    }
+
+    private TiledCarver(Path raster, long offset, int width, int height) throws IOException {
+        if (width < 1 || height < 1) throw new IllegalArgumentException("width and height must be positive");
+        this.path     = raster;
+        this.file     = FileChannel.open(raster, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (file.size() < offset + 4L * width * height) {
+            file.close();
+            throw new IllegalArgumentException("raster file is shorter than " + width + "-by-" + height);
+        }
+        this.offset   = offset;
+        this.capacity = width;
+        this.raster   = file;
+        this.rasterOffset = offset;
+        this.stride   = width;
+        this.w        = width;
+        this.h        = height;
+        Path edgePath = Files.createTempFile(raster.toAbsolutePath().getParent(), "edges", ".tmp");
+        this.edges    = FileChannel.open(edgePath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                         StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+   /**
+     * Returns the current width of the raster.
+     *
+     * @return the width in pixels
+     */
+    public int width() {
+        return transposed ? h : w;
+    }
+
+   /**
+     * Returns the current height of the raster.
+     *
+     * @return the height in pixels
+     */
+    public int height() {
+        return transposed ? w : h;
+    }
+
+   /**
+     * Replaces the energy function.
+     *
+     * @param function the new energy function
+     * @throws NullPointerException if <tt>function</tt> is <tt>null</tt>
+     */
+    public void setEnergyFunction(EnergyFunction function) {
+        if (function == null) throw new NullPointerException("energy function must not be null");
+        this.function = function;
+    }
+
+   /**
+     * Sets the memory budget of one band of pixels. Smaller bands use less
+     * heap at the cost of more, smaller reads and writes.
+     *
+     * @param bytes the band size in bytes; at least one row is always read
+     */
+    public void setBandBytes(int bytes) {
+        if (bytes < 1) throw new IllegalArgumentException("band size must be positive");
+        this.bandBytes = bytes;
+    }
+
+   /**
+     * Carves the raster down to <tt>width</tt>-by-<tt>height</tt>, vertical
+     * seams first.
+     *
+     * @param width the target width, between 1 and the current width
+     * @param height the target height, between 1 and the current height
+     * @throws IllegalArgumentException if the target is out of range
+     * @throws IOException if the raster cannot be read or written
+     */
+    public void resizeTo(int width, int height) throws IOException {
+        if (width  < 1 || width  > width())  throw new IllegalArgumentException("width must be between 1 and " + width());
+        if (height < 1 || height > height()) throw new IllegalArgumentException("height must be between 1 and " + height());
+        while (width() > width)
+            removeVerticalSeam(findVerticalSeam());
+        while (height() > height)
+            removeHorizontalSeam(findHorizontalSeam());
+    }
+
+    public int[] findVerticalSeam() throws IOException {
+        orient(false);
+        return seam();
+    }
+
+    public int[] findHorizontalSeam() throws IOException {
+        orient(true);
+        return seam();
+    }
+
+    public void removeVerticalSeam(int[] seam) throws IOException {
+        orient(false);
+        removeSeam(seam);
+    }
+
+    public void removeHorizontalSeam(int[] seam) throws IOException {
+        orient(true);
+        removeSeam(seam);
+    }
+
+   /**
+     * Writes the carved raster back to the file, densely packed row by row
+     * at the current width, truncates the file, and releases the temporary
+     * files.
+     *
+     * @throws IOException if the raster cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            orient(false);
+            // rows only move towards the start of the file, so in order is safe
+            int[] row = new int[w];
+            for (int y = 0; y < h; y++) {
+                read(file, offset, stride, y, 1, row, 0, w);
+                write(file, offset, w, y, 1, row, w);
+            }
+            file.truncate(offset + 4L * w * h);
+            if (header)
+                RawRaster.writeHeader(file, w, h);
+        }
+        finally {
+            file.close();
+            edges.close();
+            if (transpose != null) {
+                transpose.close();
+                Files.deleteIfExists(transposePath);
+            }
+        }
+    }
+
+    // rows per band so that a band of pixels stays within BAND_BYTES
+    private int bandRows() {
+        return Math.max(1, Math.min(h, bandBytes / (4 * stride)));
+    }
+
+    // cumulative energy DP over bands of rows: the band plus radius rows of
+    // halo on each side (wrapping around) is read, energies and DP steps of
+    // the band rows computed, and the steps spilled to the edge file
+    private int[] seam() throws IOException {
+        int band = bandRows(), radius = function.radius();
+        int[] pixels = new int[(band + 2 * radius) * stride];
+        double[] dist = new double[w], next = new double[w], energy = new double[w];
+        byte[] steps = new byte[band * w];
+
+        for (int y0 = 0; y0 < h; y0 += band) {
+            int y1 = Math.min(h, y0 + band);
+            int rows = y1 - y0 + 2 * radius;
+            if (y0 - radius >= 0 && y1 + radius <= h)
+                read(raster, rasterOffset, stride, y0 - radius, rows, pixels, 0, w);
+            else
+                for (int i = 0; i < rows; i++)
+                    read(raster, rasterOffset, stride, Math.floorMod(y0 - radius + i, h), 1, pixels, i * stride, w);
+
+            for (int y = y0; y < y1; y++) {
+                function.energyRow(pixels, stride, w, rows, y - y0 + radius, 0, w, energy, 0);
+                if (y == 0) {
+                    System.arraycopy(energy, 0, dist, 0, w);
+                    continue;
+                }
+                int row = (y - y0) * w;
+                for (int x = 0; x < w; x++) {
+                    double best = dist[x];
+                    byte step = 0;
+                    if (x + 1 < w && dist[x + 1] < best) { best = dist[x + 1]; step =  1; }
+                    if (x - 1 >= 0 && dist[x - 1] < best) { best = dist[x - 1]; step = -1; }
+                    next[x] = best + energy[x];
+                    steps[row + x] = step;
+                }
+                double[] tmp = dist; dist = next; next = tmp;
+            }
+            edges.write(ByteBuffer.wrap(steps, 0, (y1 - y0) * w), (long) y0 * w);
+        }
+
+        int x = 0;
+        for (int i = 1; i < w; i++)
+            if (dist[i] < dist[x]) x = i;
+
+        int[] seam = new int[h];
+        for (int y1 = h; y1 > 0; y1 -= band) {
+            int y0 = Math.max(0, y1 - band);
+            ByteBuffer buffer = ByteBuffer.wrap(steps, 0, (y1 - y0) * w);
+            while (buffer.hasRemaining())
+                if (edges.read(buffer, (long) y0 * w + buffer.position()) < 0) throw new IOException("edge file truncated");
+            for (int y = y1 - 1; y >= y0; y--) {
+                seam[y] = x;
+                if (y > 0) x += steps[(y - y0) * w + x];
+            }
+        }
+        return seam;
+    }
+
+    // shift every row left over its seam pixel, one band at a time
+    private void removeSeam(int[] seam) throws IOException {
+        if (seam.length != h) throw new IllegalArgumentException("seam must have length " + h);
+        int band = bandRows();
+        int[] pixels = new int[band * stride];
+        for (int y0 = 0; y0 < h; y0 += band) {
+            int rows = Math.min(h, y0 + band) - y0;
+            read(raster, rasterOffset, stride, y0, rows, pixels, 0, w);
+            for (int i = 0; i < rows; i++) {
+                int s = seam[y0 + i];
+                if (s < 0 || s >= w) throw new IllegalArgumentException("seam leaves the raster");
+                System.arraycopy(pixels, i * stride + s + 1, pixels, i * stride + s, w - 1 - s);
+            }
+            write(raster, rasterOffset, stride, y0, rows, pixels, w - 1);
+        }
+        w--;
+    }
+
+    // make seams run down the rows of the raster, transposing it into (or
+    // back out of) the temporary file
+    private void orient(boolean horizontal) throws IOException {
+        if (transposed == horizontal) return;
+        if (transpose == null) {
+            transposePath = Files.createTempFile(path.toAbsolutePath().getParent(), "transpose", ".tmp");
+            transpose = FileChannel.open(transposePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        FileChannel dst = horizontal ? transpose : file;
+        long dstOffset  = horizontal ? 0 : offset;
+        int dstStride   = horizontal ? h : capacity;
+
+        int band = bandRows();
+        int[] pixels = new int[band * stride];
+        ByteBuffer column = ByteBuffer.allocateDirect(4 * band);
+        IntBuffer ints = column.asIntBuffer();
+        for (int y0 = 0; y0 < h; y0 += band) {
+            int rows = Math.min(h, y0 + band) - y0;
+            read(raster, rasterOffset, stride, y0, rows, pixels, 0, w);
+            for (int x = 0; x < w; x++) {
+                ints.clear();
+                for (int i = 0; i < rows; i++)
+                    ints.put(pixels[i * stride + x]);
+                column.clear().limit(4 * rows);
+                long position = dstOffset + 4L * ((long) x * dstStride + y0);
+                while (column.hasRemaining())
+                    position += dst.write(column, position);
+            }
+        }
+
+        raster       = dst;
+        rasterOffset = dstOffset;
+        stride       = dstStride;
+        int tmp = w; w = h; h = tmp;
+        transposed   = horizontal;
+    }
+
+    // the reusable I/O buffer, cleared and limited to bytes
+    private ByteBuffer io(int bytes) {
+        if (io == null || io.capacity() < bytes)
+            io = ByteBuffer.allocateDirect(bytes);
+        io.clear().limit(bytes);
+        return io;
+    }
+
+    // read rows [y, y+rows) of the given stride into dst starting at index
+    // at; the last row is only read up to width
+    private void read(FileChannel channel, long base, int stride, int y, int rows,
+                      int[] dst, int at, int width) throws IOException {
+        ByteBuffer buffer = io(4 * ((rows - 1) * stride + width));
+        long position = base + 4L * y * stride;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) throw new IOException("raster file truncated");
+        }
+        buffer.flip();
+        buffer.asIntBuffer().get(dst, at, (rows - 1) * stride + width);
+    }
+
+    // write rows [y, y+rows) of width ints each from src, rows stride apart
+    private void write(FileChannel channel, long base, int stride, int y, int rows,
+                       int[] src, int width) throws IOException {
+        ByteBuffer buffer = io(4 * ((rows - 1) * stride + width));
+        buffer.asIntBuffer().put(src, 0, (rows - 1) * stride + width);
+        long position = base + 4L * y * stride;
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+}
@@ -0,0 +1,246 @@
+/******************************************************************************
+ *  Compilation:  javac VideoCarver.java
+ *  Execution:    java VideoCarver [options] frames-directory
+ *  Dependencies: SeamCarver.java Picture.java BatchCarver.java RawRaster.java
+ *
+ *  Seam carving of a frame sequence with temporally coherent seams.
+ *
+ *  % java VideoCarver -width 75% -out retargeted frames/
+ *
+ *  Options
+ *  -------
+ *   -width spec      target width, in pixels or as a percentage (default 100%)
+ *   -height spec     target height, in pixels or as a percentage (default 100%)
+ *   -out dir         output directory (default carved)
+ *   -radius r        columns a seam may move between frames (default 4)
+ *   -keyframe n      frames between full seam searches (default 30)
+ *   -decoders n      decoding threads (default 2)
+ *   -encoders n      encoding threads (default 2)
+ *
+ *  Frames are the .jpg, .png, .gif and .raw files of the directory, in name
+ *  order, and keep their names in the output directory, except that .gif
+ *  frames are written as .png.
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ *  A <tt>VideoCarver</tt> retargets the frames of a video, one after the
+ *  other, to a fixed size. Carving each frame on its own makes seams jump
+ *  between frames, which shows as jitter, and pays for a full seam search
+ *  every time. Instead, the i-th seam of a frame is searched only within
+ *  <tt>radius</tt> pixels of the i-th seam of the frame before. That keeps
+ *  seams coherent over time and computes energies only inside the bands.
+ *  Every <tt>keyframe</tt> frames, and whenever the frame size changes,
+ *  seams are searched over the whole frame again so that scene changes
+ *  are picked up.
+ *  <p>
+ *  One <tt>SeamCarver</tt> and its buffers serve the whole sequence. The
+ *  command-line program decodes and encodes frames on pools of their own,
+ *  in order, while the carving thread works on the current frame.
+ */
+public final class VideoCarver {
+    private final String width, height;
+    private int radius = 4;
+    private int keyframe = 30;
+
+    private SeamCarver seamcarver;
+    private int frameWidth = -1, frameHeight = -1;
+    private int sinceKeyframe;
+    private final List<int[]> vertical = new ArrayList<int[]>();     // seams of the previous frame
+    private final List<int[]> horizontal = new ArrayList<int[]>();
+
+   /**
+     * Creates a carver retargeting frames to <tt>width</tt>-by-<tt>height</tt>,
+     * each given in pixels, such as <tt>"640"</tt>, or as a percentage of
+     * the frame size, such as <tt>"75%"</tt>.
+     *
+     * @param width the target width
+     * @param height the target height
+     */
+    public VideoCarver(String width, String height) {
+        this.width  = width;
+        this.height = height;
+    }
+
+   /**
+     * Sets how far, in pixels, a seam may move from one frame to the next.
+     *
+     * @param radius the search band half-width, at least 1
+     * @throws IllegalArgumentException if <tt>radius</tt> is less than 1
+     */
+    public void setRadius(int radius) {
+        if (radius < 1) throw new IllegalArgumentException("radius must be at least 1");
+        this.radius = radius;
+    }
+
+   /**
+     * Sets how many frames pass between two full seam searches.
+     *
+     * @param keyframe the keyframe interval, at least 1
+     * @throws IllegalArgumentException if <tt>keyframe</tt> is less than 1
+     */
+    public void setKeyframeInterval(int keyframe) {
+        if (keyframe < 1) throw new IllegalArgumentException("keyframe interval must be at least 1");
+        this.keyframe = keyframe;
+    }
+
+   /**
+     * Retargets the next frame of the sequence.
+     *
+     * @param frame the frame; it is not modified
+     * @return a new picture of the target size
+     * @throws InterruptedException if interrupted while carving
+     */
+    public Picture carve(Picture frame) throws InterruptedException {
+        boolean full = frame.width() != frameWidth || frame.height() != frameHeight || ++sinceKeyframe >= keyframe;
+        if (seamcarver == null) seamcarver = new SeamCarver(frame);
+        else                    seamcarver.reload(frame);
+        if (full) {
+            vertical.clear();
+            horizontal.clear();
+            sinceKeyframe = 0;
+            frameWidth  = frame.width();
+            frameHeight = frame.height();
+        }
+
+        int targetWidth  = BatchCarver.target(width,  frame.width());
+        int targetHeight = BatchCarver.target(height, frame.height());
+        for (int i = 0; seamcarver.width() > targetWidth; i++) {
+            int[] seam = full ? seamcarver.findVerticalSeam() : seamcarver.findVerticalSeam(vertical.get(i), radius);
+            if (full) vertical.add(seam);
+            else      vertical.set(i, seam);
+            seamcarver.removeVerticalSeam(seam);
+        }
+        for (int i = 0; seamcarver.height() > targetHeight; i++) {
+            int[] seam = full ? seamcarver.findHorizontalSeam() : seamcarver.findHorizontalSeam(horizontal.get(i), radius);
+            if (full) horizontal.add(seam);
+            else      horizontal.set(i, seam);
+            seamcarver.removeHorizontalSeam(seam);
+        }
+        return seamcarver.picture();
+    }
+
+   /**
+     * Retargets the frames of a directory as described in the header comment.
+     *
+     * @param args the command-line arguments
+     * @throws Exception if a frame cannot be read or written
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        String width = "100%", height = "100%";
+        File out = new File("carved"), in = null;
+        int radius = 4, keyframe = 30, decoders = 2, encoders = 2;
+        for (int i = 0; i < args.length; i++) {
+            if      (args[i].equals("-width"))    width    = args[++i];
+            else if (args[i].equals("-height"))   height   = args[++i];
+            else if (args[i].equals("-out"))      out      = new File(args[++i]);
+            else if (args[i].equals("-radius"))   radius   = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-keyframe")) keyframe = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-decoders")) decoders = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-encoders")) encoders = Integer.parseInt(args[++i]);
+            else in = new File(args[i]);
+        }
+        File[] frames = in == null ? null : in.listFiles();
+        if (frames == null) {
+            System.err.println("usage: java VideoCarver [-width spec] [-height spec] [-out dir] [-radius r] "
+                               + "[-keyframe n] [-decoders n] [-encoders n] frames-directory");
+            System.exit(2);
+        }
+        List<File> inputs = new ArrayList<File>();
+        Arrays.sort(frames);
+        for (File frame : frames) {
+            String name = frame.getName().toLowerCase();
+            if (name.endsWith(".jpg") || name.endsWith(".png") || name.endsWith(".gif") || RawRaster.isRaw(name))
+                inputs.add(frame);
+        }
+        out.mkdirs();
+
+        VideoCarver carver = new VideoCarver(width, height);
+        carver.setRadius(radius);
+        carver.setKeyframeInterval(keyframe);
+        long start = System.nanoTime();
+        carver.run(inputs, out, decoders, encoders);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d frames in %.1f s: %.2f frames/s%n", inputs.size(), seconds, inputs.size() / seconds);
+    }
+
+    // the file a frame is written to: its own name, with the .png suffix
+    // for formats Picture cannot write
+    private static File output(File out, File input) {
+        String name = input.getName();
+        String n = name.toLowerCase();
+        if (n.endsWith(".jpg") || n.endsWith(".png") || RawRaster.isRaw(n)) return new File(out, name);
+        int dot = name.lastIndexOf('.');
+        return new File(out, (dot < 0 ? name : name.substring(0, dot)) + ".png");
+    }
+
+    // decode ahead and encode behind the carving thread, keeping frame order
+    private void run(final List<File> inputs, final File out, int decoders, int encoders) throws Exception {
+        ExecutorService decode = Executors.newFixedThreadPool(decoders);
+        ExecutorService encode = Executors.newFixedThreadPool(encoders);
+        final BlockingQueue<Future<Picture>> decoded = new ArrayBlockingQueue<Future<Picture>>(2 * decoders);
+        final Semaphore encoding = new Semaphore(2 * encoders);      // frames waiting to be written
+        List<Future<?>> written = new ArrayList<Future<?>>();
+        try {
+            Thread feeder = new Thread("video-feeder") {
+                public void run() {
+                    try {
+                        for (final File input : inputs)
+                            decoded.put(decodeLater(input));
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                private Future<Picture> decodeLater(final File input) {
+                    return decode.submit(new Callable<Picture>() {
+                        public Picture call() { return new Picture(input); }
+                    });
+                }
+            };
+            feeder.setDaemon(true);
+            feeder.start();
+
+            for (final File input : inputs) {
+                final Picture frame = carve(decoded.take().get());
+                encoding.acquire();
+                written.add(encode.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            frame.save(output(out, input));
+                        }
+                        finally {
+                            encoding.release();
+                        }
+                    }
+                }));
+                if (written.size() > 2 * encoders) written.remove(0).get();   // surface failures early
+            }
+            for (Future<?> f : written) f.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException("video carving failed", cause);
+        }
+        finally {
+            decode.shutdownNow();
+            encode.shutdown();
+        }
+    }
+}